@@ -0,0 +1,77 @@
+package com.geektime.idempotence.benchmark;
+
+import com.geektime.idempotence.RedisClusterIdempotenceStorage;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of saving one batch of idempotence IDs to a redis cluster, one SET NX per round trip
+ * versus saveAllIfAbsent. Every invocation uses fresh IDs, so all of them take the save path.
+ * Needs a running cluster, the address defaults to 127.0.0.1:7000:
+ * java -jar target/benchmarks.jar RedisClusterIdempotenceBenchmark -jvmArgsAppend -Dredis.cluster=127.0.0.1:7000
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedisClusterIdempotenceBenchmark {
+    @Param({"100", "500"})
+    private int batchSize;
+
+    private RedisClusterIdempotenceStorage storage;
+    private List<String> ids;
+
+    @Setup
+    public void setUp() {
+        storage = new RedisClusterIdempotenceStorage(System.getProperty("redis.cluster", "127.0.0.1:7000"),
+                new GenericObjectPoolConfig<>(), 60);
+    }
+
+    @Setup(Level.Invocation)
+    public void nextBatch() {
+        ids = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            ids.add(UUID.randomUUID().toString());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        storage.close();
+    }
+
+    @Benchmark
+    public int sequential() {
+        int saved = 0;
+        for (String id : ids) {
+            if (storage.saveIfAbsent(id)) {
+                saved++;
+            }
+        }
+        return saved;
+    }
+
+    @Benchmark
+    public boolean[] batch() {
+        return storage.saveAllIfAbsent(ids);
+    }
+}
@@ -0,0 +1,110 @@
+package com.geektime.ratelimiter.benchmark;
+
+import com.geektime.ratelimiter.alg.KeyedRateLimitAlg;
+import com.geektime.ratelimiter.alg.RateLimitAlg;
+import com.geektime.ratelimiter.alg.RateLimitAlgFactory;
+import com.geektime.ratelimiter.alg.RateLimitAlgType;
+import com.geektime.ratelimiter.rule.ApiLimit;
+import com.geektime.ratelimiter.rule.LimitDimension;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description: 各限流算法单次判定的吞吐与分配基准测试
+ * 计数器统一通过RateLimitAlgFactory按规则创建，与生产环境的参数推导一致。
+ * - algorithm: 限流算法；FIXED_WINDOW_STRIPED为16分段的固定窗口，DIMENSION_*为按维度值计数的实现
+ * - keys: 1表示所有线程争用同一个热点计数器；10000表示请求随机分散到一万个冷计数器（维度算法为一万个维度值）上，
+ *   工作集超出CPU缓存，可观察缓存未命中的代价
+ * - path: admit为限额足够大、始终放行；reject为限额已耗尽、始终拒绝
+ * 线程数用 -t 指定，或用BenchmarkRunner依次跑1/4/16/64线程并输出JSON结果。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:08
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AlgorithmBenchmark {
+    @Param({"FIXED_WINDOW", "FIXED_WINDOW_STRIPED", "SLIDING_WINDOW", "TOKEN_BUCKET", "LEAKY_BUCKET",
+            "DIMENSION_FIXED_WINDOW", "DIMENSION_TOKEN_BUCKET"})
+    private String algorithm;
+
+    @Param({"1", "10000"})
+    private int keys;
+
+    @Param({"admit", "reject"})
+    private String path;
+
+    private RateLimitAlg[] counters;
+    private KeyedRateLimitAlg keyedCounter;
+    private String[] limitKeys;
+
+    @Setup
+    public void setUp() {
+        boolean dimensional = algorithm.startsWith("DIMENSION_");
+        RateLimitAlgFactory factory = new RateLimitAlgFactory();
+        if (dimensional) {
+            keyedCounter = (KeyedRateLimitAlg) factory.create(apiLimit(0));
+            limitKeys = new String[keys];
+            for (int i = 0; i < keys; i++) {
+                limitKeys[i] = "user-" + i;
+            }
+        } else {
+            counters = new RateLimitAlg[keys];
+            for (int i = 0; i < keys; i++) {
+                counters[i] = factory.create(apiLimit(i));
+            }
+        }
+        if ("reject".equals(path)) {
+            // 先用掉每个计数器（维度值）的全部限额
+            for (int i = 0; i < keys; i++) {
+                if (dimensional) {
+                    keyedCounter.tryAcquire(limitKeys[i]);
+                } else {
+                    counters[i].tryAcquire();
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean tryAcquire() {
+        int index = keys == 1 ? 0 : ThreadLocalRandom.current().nextInt(keys);
+        if (keyedCounter != null) {
+            return keyedCounter.tryAcquire(limitKeys[index]);
+        }
+        return counters[index].tryAcquire();
+    }
+
+    private ApiLimit apiLimit(int index) {
+        // reject路径每小时限额为1，预先用掉后始终拒绝；admit路径每秒限额足够大，测量期间不会耗尽
+        boolean reject = "reject".equals(path);
+        int limit = reject ? 1 : Integer.MAX_VALUE;
+        long unit = reject ? 3600 : 1;
+        String algorithmName = algorithm.replace("DIMENSION_", "").replace("_STRIPED", "");
+        ApiLimit apiLimit = new ApiLimit("app-1", "/api/" + index, limit, unit, RateLimitAlgType.valueOf(algorithmName));
+        if (algorithm.endsWith("_STRIPED")) {
+            apiLimit.setStripes(16);
+        }
+        if (algorithm.startsWith("DIMENSION_")) {
+            apiLimit.setDimension(LimitDimension.USER);
+            // 维度计数的状态只有24位，限额不能超过2^24-1
+            apiLimit.setLimit(Math.min(limit, (1 << 24) - 1));
+        }
+        return apiLimit;
+    }
+}
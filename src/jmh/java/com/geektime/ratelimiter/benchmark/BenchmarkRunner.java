@@ -0,0 +1,56 @@
+package com.geektime.ratelimiter.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @Description: 按1/4/16/64线程依次运行基准测试，开启GC分配统计，结果合并写入一个JSON文件，便于不同提交之间对比
+ * 用法：java -cp target/benchmarks.jar com.geektime.ratelimiter.benchmark.BenchmarkRunner [JMH参数]
+ * - JMH参数与 java -jar target/benchmarks.jar 相同，如正则、-p keys=1、-wi 1 -i 3；
+ *   未指定正则时运行 AlgorithmBenchmark|RateLimiterBenchmark，线程数（-t）由本类控制
+ * - -Dbenchmark.threads=1,4：覆盖线程数列表
+ * - -Dbenchmark.output=target/jmh-result.json：覆盖结果文件路径
+ * JSON格式与 java -jar target/benchmarks.jar -rf json 相同，可直接用JMH Visualizer等工具比较；
+ * 每条结果的threads字段区分线程数，secondaryMetrics中的gc.alloc.rate.norm为每次调用的分配字节数。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:08
+ **/
+public class BenchmarkRunner {
+    private static final String DEFAULT_INCLUDE = "AlgorithmBenchmark|RateLimiterBenchmark";
+    private static final String DEFAULT_THREADS = "1,4,16,64";
+    private static final String DEFAULT_OUTPUT = "target/jmh-result.json";
+
+    public static void main(String[] args) throws RunnerException, IOException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        String output = System.getProperty("benchmark.output", DEFAULT_OUTPUT);
+        List<RunResult> results = new ArrayList<>();
+        for (String threads : System.getProperty("benchmark.threads", DEFAULT_THREADS).split(",")) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(Integer.parseInt(threads.trim()))
+                    .addProfiler(GCProfiler.class);
+            if (commandLine.getIncludes().isEmpty()) {
+                options.include(DEFAULT_INCLUDE);
+            }
+            results.addAll(new Runner(options.build()).run());
+        }
+        try (PrintStream out = new PrintStream(output, StandardCharsets.UTF_8)) {
+            ResultFormatFactory.getInstance(ResultFormatType.JSON, out).writeOut(results);
+        }
+        System.out.println("Wrote " + results.size() + " benchmark results to " + output);
+    }
+}
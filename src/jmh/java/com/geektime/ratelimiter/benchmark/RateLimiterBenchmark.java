@@ -0,0 +1,99 @@
+package com.geektime.ratelimiter.benchmark;
+
+import com.geektime.ratelimiter.RateLimiter;
+import com.geektime.ratelimiter.rule.ApiLimit;
+import com.geektime.ratelimiter.rule.RuleConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description: RateLimiter.limit() 端到端基准测试（规则匹配 + 计数器判定）
+ * - exactPath / parameterizedPath: 反复命中同一条热点规则
+ * - coldPath: 请求随机分散到rules条规则上，规则表和计数器都不在缓存中
+ * - rejectedPath: 命中限额已耗尽的规则，测量拒绝路径（含指标统计，明细日志默认不采样）
+ * 配合 -prof gc 查看每次调用的分配量（gc.alloc.rate.norm），预期接近 0 B/op：
+ * java -jar target/benchmarks.jar RateLimiterBenchmark -prof gc
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:02
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RateLimiterBenchmark {
+    private static final String APP_ID = "app-1";
+    private static final String REJECTED_PATH = "/api/v1/blocked";
+
+    @Param({"10", "10000"})
+    private int rules;
+
+    private RateLimiter rateLimiter;
+    private String[] coldPaths;
+
+    @Setup
+    public void setUp() {
+        List<ApiLimit> limits = new ArrayList<>();
+        // 限额足够大，保证测量的是放行路径
+        limits.add(new ApiLimit(APP_ID, "/api/v1/user/{id}", Integer.MAX_VALUE, 1));
+        limits.add(new ApiLimit(APP_ID, "/api/v1/order", Integer.MAX_VALUE, 1));
+        coldPaths = new String[rules];
+        for (int i = 0; i < rules; i++) {
+            // 一半为精确路径，一半为带路径参数的规则
+            if (i % 2 == 0) {
+                limits.add(new ApiLimit(APP_ID, "/api/v2/resource" + i, Integer.MAX_VALUE, 1));
+                coldPaths[i] = "/api/v2/resource" + i;
+            } else {
+                limits.add(new ApiLimit(APP_ID, "/api/v2/resource" + i + "/{id}", Integer.MAX_VALUE, 1));
+                coldPaths[i] = "/api/v2/resource" + i + "/" + i;
+            }
+        }
+        // 每小时限额为1，预先用掉后始终拒绝
+        limits.add(new ApiLimit(APP_ID, REJECTED_PATH, 1, 3600));
+        RuleConfig ruleConfig = new RuleConfig();
+        ruleConfig.setLimits(limits);
+        rateLimiter = new RateLimiter(() -> ruleConfig);
+        rateLimiter.limit(APP_ID, REJECTED_PATH);
+    }
+
+    @TearDown
+    public void tearDown() {
+        rateLimiter.close();
+    }
+
+    @Benchmark
+    public boolean exactPath() {
+        return rateLimiter.limit(APP_ID, "/api/v1/order");
+    }
+
+    @Benchmark
+    public boolean parameterizedPath() {
+        return rateLimiter.limit(APP_ID, "/api/v1/user/123");
+    }
+
+    @Benchmark
+    public boolean coldPath() {
+        return rateLimiter.limit(APP_ID, coldPaths[ThreadLocalRandom.current().nextInt(rules)]);
+    }
+
+    @Benchmark
+    public boolean rejectedPath() {
+        return rateLimiter.limit(APP_ID, REJECTED_PATH);
+    }
+}
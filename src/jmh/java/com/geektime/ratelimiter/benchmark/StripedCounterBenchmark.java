@@ -0,0 +1,56 @@
+package com.geektime.ratelimiter.benchmark;
+
+import com.geektime.ratelimiter.alg.FixedTimeWinRateLimitAlg;
+import com.geektime.ratelimiter.alg.RateLimitAlg;
+import com.geektime.ratelimiter.alg.StripedFixedTimeWinRateLimitAlg;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description: 热点规则下单计数器与分段计数器的多线程吞吐对比
+ * 用 -t 指定线程数，例如：java -jar target/benchmarks.jar StripedCounterBenchmark -t 16
+ * limit取较小值时可观察接近限额、大部分请求被拒绝时的表现
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:06
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StripedCounterBenchmark {
+    private static final long WINDOW_SIZE_IN_MS = 3_600_000L;
+
+    @Param({"1", "8", "64"})
+    private int stripes;
+
+    @Param({"2000000000", "1000000"})
+    private int limit;
+
+    private RateLimitAlg counter;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        counter = stripes == 1
+                ? new FixedTimeWinRateLimitAlg(limit, WINDOW_SIZE_IN_MS)
+                : new StripedFixedTimeWinRateLimitAlg(limit, WINDOW_SIZE_IN_MS, stripes);
+    }
+
+    @Benchmark
+    public boolean tryAcquire() {
+        return counter.tryAcquire();
+    }
+}
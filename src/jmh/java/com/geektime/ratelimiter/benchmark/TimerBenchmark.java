@@ -0,0 +1,83 @@
+package com.geektime.ratelimiter.benchmark;
+
+import com.geektime.ratelimiter.timer.HashedWheelTimer;
+import com.geektime.ratelimiter.timer.Timeout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description: 大量待执行定时任务下，哈希时间轮与ScheduledThreadPoolExecutor的提交+取消开销对比
+ * 每轮开始前先登记pending个远期任务（模拟排队等待许可的请求与计数器过期检查），
+ * 之后每次操作提交一个随机延迟的任务并立即取消，对应请求在等待中拿到许可或放弃的场景。
+ * ScheduledThreadPoolExecutor开启removeOnCancel，取消时从堆中移除，否则已取消的任务会一直占着堆。
+ * 例如：java -jar target/benchmarks.jar TimerBenchmark -t 4
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:07
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimerBenchmark {
+    private static final long MAX_DELAY_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final Runnable NOOP = () -> { };
+
+    @Param({"100000"})
+    private int pending;
+
+    private HashedWheelTimer wheelTimer;
+    private ScheduledThreadPoolExecutor executor;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        wheelTimer = new HashedWheelTimer();
+        executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < pending; i++) {
+            long delay = MAX_DELAY_MS / 2 + random.nextLong(MAX_DELAY_MS / 2);
+            wheelTimer.newTimeout(NOOP, delay, TimeUnit.MILLISECONDS);
+            executor.schedule(NOOP, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        wheelTimer.stop();
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public boolean hashedWheelTimer() {
+        Timeout timeout = wheelTimer.newTimeout(NOOP, delayMs(), TimeUnit.MILLISECONDS);
+        return timeout.cancel();
+    }
+
+    @Benchmark
+    public boolean scheduledThreadPoolExecutor() {
+        ScheduledFuture<?> future = executor.schedule(NOOP, delayMs(), TimeUnit.MILLISECONDS);
+        return future.cancel(false);
+    }
+
+    private static long delayMs() {
+        return 1 + ThreadLocalRandom.current().nextLong(MAX_DELAY_MS / 2);
+    }
+}
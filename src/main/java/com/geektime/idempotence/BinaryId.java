@@ -0,0 +1,45 @@
+package com.geektime.idempotence;
+
+import java.util.Arrays;
+
+/**
+ * A binary idempotence ID used as a hash key, compared by content.
+ * The array is not copied, so a key kept after the call that created it must be made with copy().
+ */
+final class BinaryId {
+    private final byte[] bytes;
+    private final int hash;
+
+    BinaryId(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return a key on a private copy of the array, safe to keep when the caller reuses its array
+     */
+    BinaryId copy() {
+        return new BinaryId(bytes.clone());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BinaryId)) {
+            return false;
+        }
+        BinaryId other = (BinaryId) o;
+        return hash == other.hash && Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
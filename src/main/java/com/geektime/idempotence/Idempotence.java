@@ -1,17 +1,48 @@
 package com.geektime.idempotence;
 
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
 /**
- * Main class for handling idempotence operations
+ * Main class for handling idempotence operations.
+ * Concurrent saves of the same idempotenceId in this JVM are coalesced: while one save is in flight,
+ * later callers wait for it instead of asking the storage again, and get false since the ID is taken
+ * by the first caller. A failed save fails its waiters with the same exception.
+ * Async saves complete on a separate executor, by default the common ForkJoinPool,
+ * so callbacks chained by callers do not run on the storage's I/O threads.
  */
 public class Idempotence {
     private final IdempotenceStorage storage;
+    private final Executor completionExecutor;
+    private final ConcurrentHashMap<Object, CompletableFuture<Boolean>> inFlightSaves = new ConcurrentHashMap<>();
 
     /**
      * Constructor
      * @param storage the storage implementation to use
      */
     public Idempotence(IdempotenceStorage storage) {
+        this(storage, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor
+     * @param storage the storage implementation to use
+     * @param completionExecutor the executor completing the futures of async saves, and so running their callbacks
+     */
+    public Idempotence(IdempotenceStorage storage, Executor completionExecutor) {
+        if (completionExecutor == null) {
+            throw new IllegalArgumentException("Completion executor must not be null");
+        }
         this.storage = storage;
+        this.completionExecutor = completionExecutor;
     }
 
     /**
@@ -20,7 +51,100 @@ public class Idempotence {
      * @return true if the idempotenceId is saved, otherwise return false
      */
     public boolean saveIfAbsent(String idempotenceId) {
-        return storage.saveIfAbsent(idempotenceId);
+        return coalescedSave(idempotenceId, () -> storage.saveIfAbsent(idempotenceId));
+    }
+
+    /**
+     * Save a binary idempotenceId, such as one from IdempotenceIdGenerator.generateBinaryId(), if it does not exist
+     * @param idempotenceId the binary idempotence ID
+     * @return true if the idempotenceId is saved, otherwise return false
+     */
+    public boolean saveIfAbsent(byte[] idempotenceId) {
+        return coalescedSave(new BinaryId(idempotenceId), () -> storage.saveIfAbsent(idempotenceId));
+    }
+
+    /**
+     * @param key a String ID or a BinaryId
+     */
+    private boolean coalescedSave(Object key, BooleanSupplier save) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        CompletableFuture<Boolean> inFlight = inFlightSaves.putIfAbsent(key, result);
+        if (inFlight != null) {
+            try {
+                inFlight.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+            return false;
+        }
+        Boolean saved = null;
+        Throwable failure = null;
+        try {
+            saved = save.getAsBoolean();
+            return saved;
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            // Always completed, so an Error in the save does not leave waiters blocked forever
+            inFlightSaves.remove(key, result);
+            if (saved != null) {
+                result.complete(saved);
+            } else {
+                result.completeExceptionally(failure != null ? failure
+                        : new CancellationException("Save of the idempotence ID did not complete"));
+            }
+        }
+    }
+
+    /**
+     * Save idempotenceId if it does not exist, without blocking the caller on storage I/O
+     * @param idempotenceId the idempotence ID
+     * @return a future of true if the idempotenceId is saved, otherwise false
+     */
+    public CompletableFuture<Boolean> saveIfAbsentAsync(String idempotenceId) {
+        return coalescedSaveAsync(idempotenceId, () -> storage.saveIfAbsentAsync(idempotenceId));
+    }
+
+    /**
+     * Save a binary idempotenceId if it does not exist, without blocking the caller on storage I/O
+     * @param idempotenceId the binary idempotence ID
+     * @return a future of true if the idempotenceId is saved, otherwise false
+     */
+    public CompletableFuture<Boolean> saveIfAbsentAsync(byte[] idempotenceId) {
+        return coalescedSaveAsync(new BinaryId(idempotenceId), () -> storage.saveIfAbsentAsync(idempotenceId));
+    }
+
+    private CompletableFuture<Boolean> coalescedSaveAsync(Object key, Supplier<CompletableFuture<Boolean>> storageSave) {
+        CompletableFuture<Boolean> save = new CompletableFuture<>();
+        CompletableFuture<Boolean> inFlight = inFlightSaves.putIfAbsent(key, save);
+        if (inFlight != null) {
+            return inFlight.thenApply(saved -> false);
+        }
+        CompletableFuture<Boolean> stored;
+        try {
+            stored = storageSave.get();
+        } catch (RuntimeException | Error e) {
+            inFlightSaves.remove(key, save);
+            save.completeExceptionally(e);
+            throw e;
+        }
+        BiConsumer<Boolean, Throwable> complete = (saved, e) -> {
+            // Removed before completing, so a caller arriving after completion asks the storage again
+            inFlightSaves.remove(key, save);
+            if (e != null) {
+                save.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            } else {
+                save.complete(saved);
+            }
+        };
+        if (stored.isDone()) {
+            stored.whenComplete(complete);
+        } else {
+            // Callbacks chained by callers run where save completes, which must not be the storage's I/O threads
+            stored.whenCompleteAsync(complete, completionExecutor);
+        }
+        return save;
     }
 
     /**
@@ -30,4 +154,64 @@ public class Idempotence {
     public void delete(String idempotenceId) {
         storage.delete(idempotenceId);
     }
-} 
\ No newline at end of file
+
+    /**
+     * Delete a binary idempotenceId from storage
+     * @param idempotenceId the binary idempotence ID to delete
+     */
+    public void delete(byte[] idempotenceId) {
+        storage.delete(idempotenceId);
+    }
+
+    /**
+     * Delete idempotenceId from storage, without blocking the caller on storage I/O
+     * @param idempotenceId the idempotence ID to delete
+     * @return a future completed when the idempotenceId is deleted
+     */
+    public CompletableFuture<Void> deleteAsync(String idempotenceId) {
+        return storage.deleteAsync(idempotenceId);
+    }
+
+    /**
+     * Delete a binary idempotenceId from storage, without blocking the caller on storage I/O
+     * @param idempotenceId the binary idempotence ID to delete
+     * @return a future completed when the idempotenceId is deleted
+     */
+    public CompletableFuture<Void> deleteAsync(byte[] idempotenceId) {
+        return storage.deleteAsync(idempotenceId);
+    }
+
+    /**
+     * Save a batch of idempotenceIds, each one only if it does not exist
+     * @param idempotenceIds the idempotence IDs
+     * @return for each ID in iteration order, true if it is saved, otherwise false
+     */
+    public boolean[] saveAllIfAbsent(Collection<String> idempotenceIds) {
+        return storage.saveAllIfAbsent(idempotenceIds);
+    }
+
+    /**
+     * Delete a batch of idempotenceIds from storage
+     * @param idempotenceIds the idempotence IDs to delete
+     */
+    public void deleteAll(Collection<String> idempotenceIds) {
+        storage.deleteAll(idempotenceIds);
+    }
+
+    /**
+     * Save a batch of binary idempotenceIds, each one only if it does not exist
+     * @param idempotenceIds the binary idempotence IDs
+     * @return for each ID in iteration order, true if it is saved, otherwise false
+     */
+    public boolean[] saveAllBinaryIfAbsent(Collection<byte[]> idempotenceIds) {
+        return storage.saveAllBinaryIfAbsent(idempotenceIds);
+    }
+
+    /**
+     * Delete a batch of binary idempotenceIds from storage
+     * @param idempotenceIds the binary idempotence IDs to delete
+     */
+    public void deleteAllBinary(Collection<byte[]> idempotenceIds) {
+        storage.deleteAllBinary(idempotenceIds);
+    }
+}
@@ -1,16 +1,142 @@
 package com.geektime.idempotence;
 
-import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Generator for idempotence IDs
+ * Generator for idempotence IDs.
+ * An ID is 96 bits: a 48-bit millisecond timestamp, a 16-bit node ID, a 16-bit sequence and 16 random bits,
+ * so IDs sort by creation time. The timestamp and sequence advance together through one lock-free counter:
+ * within a millisecond the sequence is incremented, and when it overflows or the clock goes backwards the
+ * timestamp runs ahead of the clock instead of repeating an ID. IDs are unique only as long as every generator
+ * in the system has its own node ID, for example one assigned per instance by the deployment; two generators
+ * with the same node ID produce the same timestamp and sequence, and then collide with a chance of 1 in 65536
+ * from the random bits alone. The random bits make IDs harder to guess, they do not replace a unique node ID.
+ * The binary form is 12 bytes, the text form is 17 base62 chars whose order matches the binary order.
  */
 public class IdempotenceIdGenerator {
     /**
-     * Generate a unique idempotence ID using UUID
-     * @return a unique idempotence ID
+     * Length of a binary ID in bytes
+     */
+    public static final int BINARY_LENGTH = 12;
+    /**
+     * Length of an ID string in chars
+     */
+    public static final int STRING_LENGTH = 17;
+    private static final int MAX_NODE_ID = 0xFFFF;
+    private static final int SEQUENCE_BITS = 16;
+    // Digits in ASCII order, so fixed-length strings compare like the numbers they encode
+    private static final char[] BASE62_DIGITS =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+    // Below 2^30, so a remainder shifted left by 32 bits still fits in a long
+    private static final long BASE62_POW5 = 62L * 62 * 62 * 62 * 62;
+
+    private final int nodeId;
+    // Millisecond timestamp shifted left by 16 bits, plus the sequence
+    private final AtomicLong lastTimestampAndSequence = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param nodeId ID of this generator in [0, 65535], different for every generator in the system
+     */
+    public IdempotenceIdGenerator(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node ID must be in [0, " + MAX_NODE_ID + "]");
+        }
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Generate a unique, time-ordered idempotence ID
+     * @return a 17-char base62 idempotence ID
      */
     public String generateId() {
-        return UUID.randomUUID().toString();
+        long timestampAndSequence = nextTimestampAndSequence();
+        long low = lowBits(timestampAndSequence);
+        return encode((int) (timestampAndSequence >>> 32), low);
+    }
+
+    /**
+     * Generate a unique, time-ordered idempotence ID in binary form, to be used as a byte[] key
+     * @return a 12-byte big-endian idempotence ID
+     */
+    public byte[] generateBinaryId() {
+        long timestampAndSequence = nextTimestampAndSequence();
+        long low = lowBits(timestampAndSequence);
+        byte[] id = new byte[BINARY_LENGTH];
+        int high = (int) (timestampAndSequence >>> 32);
+        for (int i = 0; i < 4; i++) {
+            id[i] = (byte) (high >>> (24 - 8 * i));
+        }
+        for (int i = 0; i < 8; i++) {
+            id[4 + i] = (byte) (low >>> (56 - 8 * i));
+        }
+        return id;
+    }
+
+    /**
+     * Convert a binary ID to its string form
+     * @param binaryId a 12-byte ID from generateBinaryId
+     * @return the 17-char base62 ID
+     */
+    public static String toBase62(byte[] binaryId) {
+        if (binaryId.length != BINARY_LENGTH) {
+            throw new IllegalArgumentException("Binary ID must be " + BINARY_LENGTH + " bytes");
+        }
+        int high = 0;
+        for (int i = 0; i < 4; i++) {
+            high = (high << 8) | (binaryId[i] & 0xFF);
+        }
+        long low = 0;
+        for (int i = 4; i < BINARY_LENGTH; i++) {
+            low = (low << 8) | (binaryId[i] & 0xFF);
+        }
+        return encode(high, low);
+    }
+
+    /**
+     * The 96 bits are [48-bit timestamp][16-bit node ID][16-bit sequence][16 random bits];
+     * the timestamp and sequence come from one 64-bit value, of which the top 32 bits are the high word
+     */
+    private long lowBits(long timestampAndSequence) {
+        long timestampLow = (timestampAndSequence >>> SEQUENCE_BITS) & 0xFFFF;
+        long sequence = timestampAndSequence & 0xFFFF;
+        return timestampLow << 48 | (long) nodeId << 32 | sequence << 16
+                | ThreadLocalRandom.current().nextInt(1 << 16);
+    }
+
+    private long nextTimestampAndSequence() {
+        long now = System.currentTimeMillis() << SEQUENCE_BITS;
+        while (true) {
+            long last = lastTimestampAndSequence.get();
+            long next = now > last ? now : last + 1;
+            if (lastTimestampAndSequence.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Base62 digits of the 96-bit number high:low, most significant first, padded to 17 chars
+     */
+    private static String encode(int high, long low) {
+        // Three 32-bit limbs, divided by 62^5 per pass to get five digits at a time
+        long[] limbs = {high & 0xFFFFFFFFL, low >>> 32, low & 0xFFFFFFFFL};
+        char[] chars = new char[STRING_LENGTH];
+        int position = STRING_LENGTH;
+        while (position > 0) {
+            long remainder = 0;
+            for (int j = 0; j < limbs.length; j++) {
+                long value = (remainder << 32) | limbs[j];
+                limbs[j] = value / BASE62_POW5;
+                remainder = value % BASE62_POW5;
+            }
+            int digits = (int) remainder;
+            for (int k = 0; k < 5 && position > 0; k++) {
+                chars[--position] = BASE62_DIGITS[digits % 62];
+                digits /= 62;
+            }
+        }
+        return new String(chars);
     }
-} 
\ No newline at end of file
+}
@@ -1,5 +1,9 @@
 package com.geektime.idempotence;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Interface for idempotence storage operations
  */
@@ -16,4 +20,131 @@ public interface IdempotenceStorage {
      * @param idempotenceId the idempotence ID to delete
      */
     void delete(String idempotenceId);
-} 
\ No newline at end of file
+
+    /**
+     * Save a binary idempotenceId, such as one from IdempotenceIdGenerator.generateBinaryId(), if it does not exist.
+     * Binary and String IDs should not be mixed in one storage. The default implementation maps each byte to one
+     * char; storages with native binary keys should override it.
+     * @param idempotenceId the binary idempotence ID
+     * @return true if the idempotenceId is saved, otherwise return false
+     */
+    default boolean saveIfAbsent(byte[] idempotenceId) {
+        return saveIfAbsent(new String(idempotenceId, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Delete a binary idempotenceId from storage
+     * @param idempotenceId the binary idempotence ID to delete
+     */
+    default void delete(byte[] idempotenceId) {
+        delete(new String(idempotenceId, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Save idempotenceId into storage if it does not exist, without blocking the caller on I/O.
+     * The default implementation runs saveIfAbsent in the calling thread, which suits in-memory storages;
+     * storages doing blocking I/O should override it.
+     * @param idempotenceId the idempotence ID
+     * @return a future of true if the idempotenceId is saved, otherwise false
+     */
+    default CompletableFuture<Boolean> saveIfAbsentAsync(String idempotenceId) {
+        try {
+            return CompletableFuture.completedFuture(saveIfAbsent(idempotenceId));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Delete idempotenceId from storage without blocking the caller on I/O.
+     * The default implementation runs delete in the calling thread.
+     * @param idempotenceId the idempotence ID to delete
+     * @return a future completed when the idempotenceId is deleted
+     */
+    default CompletableFuture<Void> deleteAsync(String idempotenceId) {
+        try {
+            delete(idempotenceId);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Save a binary idempotenceId if it does not exist, without blocking the caller on I/O.
+     * The default implementation runs saveIfAbsent in the calling thread.
+     * @param idempotenceId the binary idempotence ID
+     * @return a future of true if the idempotenceId is saved, otherwise false
+     */
+    default CompletableFuture<Boolean> saveIfAbsentAsync(byte[] idempotenceId) {
+        try {
+            return CompletableFuture.completedFuture(saveIfAbsent(idempotenceId));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Delete a binary idempotenceId from storage without blocking the caller on I/O.
+     * The default implementation runs delete in the calling thread.
+     * @param idempotenceId the binary idempotence ID to delete
+     * @return a future completed when the idempotenceId is deleted
+     */
+    default CompletableFuture<Void> deleteAsync(byte[] idempotenceId) {
+        try {
+            delete(idempotenceId);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Save a batch of idempotenceIds, each one only if it does not exist.
+     * Implementations backed by a remote store should override this to save the batch in as few round trips as possible.
+     * @param idempotenceIds the idempotence IDs
+     * @return for each ID in iteration order, true if it is saved by this call; a repeated ID is saved at most once
+     */
+    default boolean[] saveAllIfAbsent(Collection<String> idempotenceIds) {
+        boolean[] results = new boolean[idempotenceIds.size()];
+        int i = 0;
+        for (String idempotenceId : idempotenceIds) {
+            results[i++] = saveIfAbsent(idempotenceId);
+        }
+        return results;
+    }
+
+    /**
+     * Delete a batch of idempotenceIds from storage
+     * @param idempotenceIds the idempotence IDs to delete
+     */
+    default void deleteAll(Collection<String> idempotenceIds) {
+        for (String idempotenceId : idempotenceIds) {
+            delete(idempotenceId);
+        }
+    }
+
+    /**
+     * Save a batch of binary idempotenceIds, each one only if it does not exist
+     * @param idempotenceIds the binary idempotence IDs
+     * @return for each ID in iteration order, true if it is saved by this call; a repeated ID is saved at most once
+     */
+    default boolean[] saveAllBinaryIfAbsent(Collection<byte[]> idempotenceIds) {
+        boolean[] results = new boolean[idempotenceIds.size()];
+        int i = 0;
+        for (byte[] idempotenceId : idempotenceIds) {
+            results[i++] = saveIfAbsent(idempotenceId);
+        }
+        return results;
+    }
+
+    /**
+     * Delete a batch of binary idempotenceIds from storage
+     * @param idempotenceIds the binary idempotence IDs to delete
+     */
+    default void deleteAllBinary(Collection<byte[]> idempotenceIds) {
+        for (byte[] idempotenceId : idempotenceIds) {
+            delete(idempotenceId);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.geektime.idempotence;
+
+import com.geektime.ratelimiter.timer.HashedWheelTimer;
+import com.geektime.ratelimiter.timer.Timeout;
+import com.geektime.ratelimiter.timer.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory implementation of IdempotenceStorage for single-instance deployments and local caching.
+ * Each saved ID schedules its own expiration on a hashed wheel timer, so insert and delete are O(1)
+ * and there is no periodic scan over all saved IDs. Expiration is accurate to one timer tick (one second
+ * by default), and IDs are lost on restart.
+ */
+public class LocalIdempotenceStorage implements IdempotenceStorage, AutoCloseable {
+    private static final long DEFAULT_EXPIRATION_SECONDS = TimeUnit.HOURS.toSeconds(24); // 24 hours default
+    private static final int TICKS_PER_WHEEL = 4096;
+
+    private final ConcurrentHashMap<String, Entry> ids = new ConcurrentHashMap<>();
+    private final long expirationNanos;
+    private final Timer timer;
+    private final boolean ownsTimer;
+
+    /**
+     * Constructor with the default expiration time of 24 hours
+     */
+    public LocalIdempotenceStorage() {
+        this(DEFAULT_EXPIRATION_SECONDS);
+    }
+
+    /**
+     * Constructor
+     * @param expirationSeconds expiration time in seconds for idempotence IDs
+     */
+    public LocalIdempotenceStorage(long expirationSeconds) {
+        // TTLs are long, a one-second tick keeps the wheel from spinning through buckets every millisecond
+        this(expirationSeconds, new HashedWheelTimer(
+                new ThreadFactoryBuilder().setNameFormat("idempotence-expiry-%d").setDaemon(true).build(),
+                1, TimeUnit.SECONDS, TICKS_PER_WHEEL), true);
+    }
+
+    /**
+     * Constructor with a shared timer, which is not stopped on close
+     * @param expirationSeconds expiration time in seconds for idempotence IDs
+     * @param timer the timer driving expirations
+     */
+    public LocalIdempotenceStorage(long expirationSeconds, Timer timer) {
+        this(expirationSeconds, timer, false);
+    }
+
+    private LocalIdempotenceStorage(long expirationSeconds, Timer timer, boolean ownsTimer) {
+        if (expirationSeconds <= 0) {
+            throw new IllegalArgumentException("Expiration seconds must be positive");
+        }
+        this.expirationNanos = TimeUnit.SECONDS.toNanos(expirationSeconds);
+        this.timer = timer;
+        this.ownsTimer = ownsTimer;
+    }
+
+    @Override
+    public boolean saveIfAbsent(String idempotenceId) {
+        Entry entry = new Entry();
+        if (ids.putIfAbsent(idempotenceId, entry) != null) {
+            return false;
+        }
+        entry.expiry = timer.newTimeout(() -> ids.remove(idempotenceId, entry), expirationNanos, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    @Override
+    public void delete(String idempotenceId) {
+        Entry entry = ids.remove(idempotenceId);
+        if (entry != null) {
+            Timeout expiry = entry.expiry;
+            if (expiry != null) {
+                expiry.cancel();
+            }
+        }
+    }
+
+    /**
+     * @return the number of saved IDs that have not expired
+     */
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Stop the expiration timer if it is owned by this storage and drop all saved IDs
+     */
+    @Override
+    public void close() {
+        if (ownsTimer) {
+            timer.stop();
+        }
+        ids.clear();
+    }
+
+    private static final class Entry {
+        // Set right after the entry is published, a delete in between leaves a timeout that removes nothing
+        volatile Timeout expiry;
+    }
+}
@@ -0,0 +1,460 @@
+package com.geektime.idempotence;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-node implementation of IdempotenceStorage backed by a memory-mapped file, for edge nodes and tests.
+ * IDs are stored as 128-bit MurmurHash3 fingerprints with an expiration timestamp in a fixed-size open-addressing
+ * hash table, so memory and file size are decided by the capacity alone and nothing is loaded on startup:
+ * reopening the file after a restart continues with the saved IDs. Two different IDs are confused only on a
+ * fingerprint collision, which is negligible at 128 bits.
+ *
+ * The table is split into segments, each a linear-probing table guarded by its own lock. Every save also
+ * cleans up a couple of expired slots, and a delete shifts the following entries back instead of leaving
+ * tombstones, so expired IDs are dropped incrementally without a background thread. When a segment is full of
+ * unexpired IDs, saveIfAbsent throws an IllegalStateException.
+ *
+ * Writes go to the OS page cache and survive a process crash; close() also flushes them to disk.
+ * The file is locked while open, so only one process uses it at a time. After a crash the occupied slots
+ * of each segment are counted again on open, as the stored counts may be off by the writes in progress.
+ * Expiration uses the wall clock, as it has to hold across restarts.
+ */
+public class MappedIdempotenceStorage implements IdempotenceStorage, AutoCloseable {
+    private static final long DEFAULT_EXPIRATION_SECONDS = TimeUnit.HOURS.toSeconds(24); // 24 hours default
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final long MAGIC = 0x31544f504d454449L; // "IDEMPOT1"
+    private static final int VERSION = 1;
+    // File header: magic, version, segment count, slots per segment, closed cleanly flag
+    private static final int FILE_HEADER_BYTES = 64;
+    // Segment header: number of occupied slots, padded to a cache line
+    private static final int SEGMENT_HEADER_BYTES = 64;
+    // Slot: fingerprint high and low 64 bits, expiration in epoch millis, 0 for an empty slot
+    private static final int SLOT_BYTES = 24;
+    private static final double MAX_LOAD_FACTOR = 0.75;
+    private static final int MAX_SEGMENTS = 64;
+    private static final int MIN_SLOTS_PER_SEGMENT = 1024;
+    // Keeps each segment below the 2GB limit of a mapped buffer
+    private static final int MAX_SLOTS_PER_SEGMENT = 1 << 26;
+    private static final int CLEANUP_SLOTS_PER_SAVE = 2;
+    // IDs do not spread evenly over segments, each gets room for this many standard deviations above the mean
+    private static final int SEGMENT_HEADROOM_STDDEVS = 5;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final long expirationMillis;
+    private volatile boolean closed;
+
+    /**
+     * Open or create the storage file with the default expiration time of 24 hours
+     * @param file the storage file
+     * @param capacity the maximum number of unexpired IDs
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public MappedIdempotenceStorage(Path file, long capacity) throws IOException {
+        this(file, capacity, DEFAULT_EXPIRATION_SECONDS);
+    }
+
+    /**
+     * Open or create the storage file
+     * @param file the storage file; an existing file must have been created with the same capacity
+     * @param capacity the maximum number of unexpired IDs
+     * @param expirationSeconds expiration time in seconds for idempotence IDs saved from now on
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public MappedIdempotenceStorage(Path file, long capacity, long expirationSeconds) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        if (expirationSeconds <= 0) {
+            throw new IllegalArgumentException("Expiration seconds must be positive");
+        }
+        long totalSlots = Math.max(MIN_SLOTS_PER_SEGMENT, nextPowerOfTwo((long) Math.ceil(capacity / MAX_LOAD_FACTOR)));
+        int segmentCount = (int) Math.min(MAX_SEGMENTS, totalSlots / MIN_SLOTS_PER_SEGMENT);
+        double idsPerSegment = (double) capacity / segmentCount;
+        if (segmentCount > 1) {
+            idsPerSegment += SEGMENT_HEADROOM_STDDEVS * Math.sqrt(idsPerSegment);
+        }
+        long slotsPerSegment = Math.max(MIN_SLOTS_PER_SEGMENT,
+                nextPowerOfTwo((long) Math.ceil(idsPerSegment / MAX_LOAD_FACTOR)));
+        if (slotsPerSegment > MAX_SLOTS_PER_SEGMENT) {
+            throw new IllegalArgumentException("Capacity " + capacity + " is too large");
+        }
+        this.expirationMillis = TimeUnit.SECONDS.toMillis(expirationSeconds);
+        this.segmentMask = segmentCount - 1;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            lock(file);
+            this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            boolean initialized = header.getLong(0) == MAGIC;
+            if (initialized && (header.getInt(8) != VERSION || header.getInt(12) != segmentCount
+                    || header.getLong(16) != slotsPerSegment)) {
+                throw new IllegalArgumentException("Storage file " + file + " was created with a different capacity");
+            }
+            boolean closedCleanly = initialized && header.getInt(24) == 1;
+            long segmentBytes = SEGMENT_HEADER_BYTES + slotsPerSegment * SLOT_BYTES;
+            this.segments = new Segment[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+                        FILE_HEADER_BYTES + i * segmentBytes, segmentBytes);
+                segments[i] = new Segment(buffer, (int) slotsPerSegment, initialized && !closedCleanly);
+            }
+            if (!initialized) {
+                // The mapped regions of a new file are zero, that is all slots empty; the magic is written last
+                header.putInt(8, VERSION);
+                header.putInt(12, segmentCount);
+                header.putLong(16, slotsPerSegment);
+                header.putLong(0, MAGIC);
+            }
+            // Set again by close(), a crash before that makes the next open count the slots
+            header.putInt(24, 0);
+            header.force();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean saveIfAbsent(String idempotenceId) {
+        ensureOpen();
+        Fingerprint fingerprint = new Fingerprint(idempotenceId);
+        long now = System.currentTimeMillis();
+        return segmentFor(fingerprint.high).saveIfAbsent(fingerprint.high, fingerprint.low, now, now + expirationMillis);
+    }
+
+    @Override
+    public void delete(String idempotenceId) {
+        ensureOpen();
+        Fingerprint fingerprint = new Fingerprint(idempotenceId);
+        segmentFor(fingerprint.high).delete(fingerprint.high, fingerprint.low);
+    }
+
+    @Override
+    public boolean saveIfAbsent(byte[] idempotenceId) {
+        ensureOpen();
+        Fingerprint fingerprint = new Fingerprint(idempotenceId);
+        long now = System.currentTimeMillis();
+        return segmentFor(fingerprint.high).saveIfAbsent(fingerprint.high, fingerprint.low, now, now + expirationMillis);
+    }
+
+    @Override
+    public void delete(byte[] idempotenceId) {
+        ensureOpen();
+        Fingerprint fingerprint = new Fingerprint(idempotenceId);
+        segmentFor(fingerprint.high).delete(fingerprint.high, fingerprint.low);
+    }
+
+    /**
+     * @return the number of occupied slots, including expired IDs not cleaned up yet
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Flush the saved IDs to disk and close the file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments) {
+            segment.force();
+        }
+        header.putInt(24, 1);
+        header.force();
+        channel.close();
+    }
+
+    /**
+     * Lock the whole file until the channel is closed, failing if another process or storage holds it
+     */
+    private void lock(Path file) throws IOException {
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            throw new IOException("Storage file " + file + " is already in use");
+        }
+    }
+
+    private static long nextPowerOfTwo(long value) {
+        return value <= 1 ? 1 : Long.highestOneBit(value - 1) << 1;
+    }
+
+    private Segment segmentFor(long high) {
+        return segments[(int) (high >>> 40) & segmentMask];
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Storage is closed");
+        }
+    }
+
+    private static final class Segment {
+        private final MappedByteBuffer buffer;
+        private final int mask;
+        private final int maxCount;
+        private int count;
+        private int cleanupCursor;
+
+        Segment(MappedByteBuffer buffer, int slots, boolean recount) {
+            this.buffer = buffer;
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            this.mask = slots - 1;
+            this.maxCount = (int) (slots * MAX_LOAD_FACTOR);
+            this.count = (int) buffer.getLong(0);
+            if (recount) {
+                int occupied = 0;
+                for (int i = 0; i < slots; i++) {
+                    if (expirationAt(i) != 0) {
+                        occupied++;
+                    }
+                }
+                setCount(occupied);
+            }
+        }
+
+        synchronized boolean saveIfAbsent(long high, long low, long now, long expiration) {
+            cleanup(now, CLEANUP_SLOTS_PER_SAVE);
+            int index = (int) low & mask;
+            int expiredIndex = -1;
+            long slotExpiration;
+            // Bounded by the slots, in case every slot is occupied
+            int probes = 0;
+            while ((slotExpiration = expirationAt(index)) != 0 && probes++ <= mask) {
+                if (highAt(index) == high && lowAt(index) == low) {
+                    if (slotExpiration > now) {
+                        return false;
+                    }
+                    buffer.putLong(offset(index) + 16, expiration);
+                    return true;
+                }
+                if (expiredIndex < 0 && slotExpiration <= now) {
+                    expiredIndex = index;
+                }
+                index = (index + 1) & mask;
+            }
+            if (expiredIndex >= 0) {
+                // Reuse the first expired slot on the probe path, the number of occupied slots does not change
+                write(expiredIndex, high, low, expiration);
+                return true;
+            }
+            if (count >= maxCount || slotExpiration != 0) {
+                int countBeforeCleanup = count;
+                cleanup(now, mask + 1);
+                // Probing found no empty slot, only a cleanup that freed some makes probing again worthwhile
+                if (count >= maxCount || (slotExpiration != 0 && count == countBeforeCleanup)) {
+                    throw new IllegalStateException("Idempotence storage is full, capacity: " + maxCount + " per segment");
+                }
+                // Cleanup shifts entries, probe again
+                return saveIfAbsent(high, low, now, expiration);
+            }
+            write(index, high, low, expiration);
+            setCount(count + 1);
+            return true;
+        }
+
+        synchronized void delete(long high, long low) {
+            int index = (int) low & mask;
+            for (int probes = 0; probes <= mask && expirationAt(index) != 0; probes++) {
+                if (highAt(index) == high && lowAt(index) == low) {
+                    removeAt(index);
+                    return;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        synchronized int size() {
+            return count;
+        }
+
+        synchronized void force() {
+            buffer.force();
+        }
+
+        /**
+         * Check the given number of slots from the cleanup cursor and remove expired IDs
+         */
+        private void cleanup(long now, int slots) {
+            for (int i = 0; i < slots && count > 0; i++) {
+                long slotExpiration = expirationAt(cleanupCursor);
+                if (slotExpiration != 0 && slotExpiration <= now) {
+                    // A following entry may be shifted into this slot, check it again
+                    removeAt(cleanupCursor);
+                } else {
+                    cleanupCursor = (cleanupCursor + 1) & mask;
+                }
+            }
+        }
+
+        /**
+         * Backward shift deletion: move each following entry of the probe run into the hole if the hole
+         * is between its home slot and its current slot, so lookups never need tombstones
+         */
+        private void removeAt(int hole) {
+            int index = hole;
+            for (int probes = 0; probes < mask; probes++) {
+                index = (index + 1) & mask;
+                long slotExpiration = expirationAt(index);
+                if (slotExpiration == 0) {
+                    break;
+                }
+                long low = lowAt(index);
+                int home = (int) low & mask;
+                if (((index - home) & mask) >= ((index - hole) & mask)) {
+                    write(hole, highAt(index), low, slotExpiration);
+                    hole = index;
+                }
+            }
+            buffer.putLong(offset(hole) + 16, 0);
+            setCount(count - 1);
+        }
+
+        private void write(int index, long high, long low, long expiration) {
+            int offset = offset(index);
+            buffer.putLong(offset, high);
+            buffer.putLong(offset + 8, low);
+            // Written last, a slot is occupied only once its fingerprint is complete
+            buffer.putLong(offset + 16, expiration);
+        }
+
+        private void setCount(int count) {
+            this.count = count;
+            buffer.putLong(0, count);
+        }
+
+        private long highAt(int index) {
+            return buffer.getLong(offset(index));
+        }
+
+        private long lowAt(int index) {
+            return buffer.getLong(offset(index) + 8);
+        }
+
+        private long expirationAt(int index) {
+            return buffer.getLong(offset(index) + 16);
+        }
+
+        private static int offset(int index) {
+            return SEGMENT_HEADER_BYTES + index * SLOT_BYTES;
+        }
+    }
+
+    /**
+     * MurmurHash3 x64 128-bit of the UTF-16LE chars of an ID, the same value as Guava's
+     * Hashing.murmur3_128().hashUnencodedChars(), computed without copying the chars into a byte array.
+     * A binary ID is hashed as one char per byte, so it has the same fingerprint as its ISO-8859-1 string.
+     */
+    private static final class Fingerprint {
+        final long high;
+        final long low;
+
+        Fingerprint(String id) {
+            this(id, id.length());
+        }
+
+        Fingerprint(byte[] id) {
+            this(id, id.length);
+        }
+
+        /**
+         * @param id a String or a byte[]
+         */
+        private Fingerprint(Object id, int length) {
+            long h1 = 0;
+            long h2 = 0;
+            int i = 0;
+            // Each 16-byte block is 8 chars
+            for (; i + 8 <= length; i += 8) {
+                long k1 = chars(id, i, 4);
+                long k2 = chars(id, i + 4, 4);
+                h1 ^= mixK1(k1);
+                h1 = Long.rotateLeft(h1, 27);
+                h1 += h2;
+                h1 = h1 * 5 + 0x52dce729;
+                h2 ^= mixK2(k2);
+                h2 = Long.rotateLeft(h2, 31);
+                h2 += h1;
+                h2 = h2 * 5 + 0x38495ab5;
+            }
+            int remaining = length - i;
+            if (remaining > 0) {
+                h1 ^= mixK1(chars(id, i, Math.min(remaining, 4)));
+                if (remaining > 4) {
+                    h2 ^= mixK2(chars(id, i + 4, remaining - 4));
+                }
+            }
+            h1 ^= 2L * length;
+            h2 ^= 2L * length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix64(h1);
+            h2 = fmix64(h2);
+            h1 += h2;
+            h2 += h1;
+            this.high = h1;
+            this.low = h2;
+        }
+
+        private static long chars(Object id, int from, int count) {
+            long value = 0;
+            if (id instanceof String) {
+                String chars = (String) id;
+                for (int j = 0; j < count; j++) {
+                    value |= (long) chars.charAt(from + j) << (16 * j);
+                }
+            } else {
+                byte[] bytes = (byte[]) id;
+                for (int j = 0; j < count; j++) {
+                    value |= (long) (bytes[from + j] & 0xFF) << (16 * j);
+                }
+            }
+            return value;
+        }
+
+        private static long mixK1(long k1) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            return k1 * C2;
+        }
+
+        private static long mixK2(long k2) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            return k2 * C1;
+        }
+
+        private static long fmix64(long k) {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+}
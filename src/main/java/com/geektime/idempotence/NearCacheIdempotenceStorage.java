@@ -0,0 +1,359 @@
+package com.geektime.idempotence;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A local tier in front of another IdempotenceStorage, usually the redis one.
+ * IDs this node has saved or found to be duplicates are kept in a bounded cache for a short time, and a repeated
+ * saveIfAbsent of such an ID returns false without a remote call. Only IDs unknown to the local tier go to the
+ * wrapped storage.
+ *
+ * An optional rotating Bloom filter remembers IDs for a longer time with a few bits each. A Bloom filter hit is
+ * also answered as a duplicate locally, so a new ID is wrongly rejected with about the configured false positive
+ * rate; enable it only where that is acceptable. IDs deleted through this storage are kept as tombstones for the
+ * lifetime of the Bloom filter so their next save goes to the wrapped storage. Tombstones are bounded by the IDs the
+ * Bloom filter holds, two windows of expected IDs, independent of the local cache; if more IDs than that are deleted,
+ * the Bloom filter is bypassed until every evicted tombstone's ID has rotated out of it.
+ *
+ * The local tier only knows what passed through this node: a delete on another node is not seen, so the local
+ * TTLs bound how long such an ID is still reported as a duplicate here. Both TTLs should stay well below the
+ * expiration of the wrapped storage.
+ */
+public class NearCacheIdempotenceStorage implements IdempotenceStorage {
+    private final IdempotenceStorage storage;
+    private final Cache<Object, Boolean> recentIds;
+    private final RotatingBloomFilter bloomFilter;
+    private final Cache<Object, Boolean> deletedIds;
+    // System.nanoTime() until which Bloom filter hits are not trusted, as a tombstone was evicted before its time
+    private volatile long bloomFilterBypassUntilNanos;
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder bloomFilterHits = new LongAdder();
+    private final LongAdder storageCalls = new LongAdder();
+
+    /**
+     * Constructor without a Bloom filter
+     * @param storage the wrapped storage
+     * @param maxRecentIds the maximum number of IDs in the local cache, the least recently used ones are evicted first
+     * @param recentTtlSeconds how long an ID stays in the local cache after it is saved or found to be a duplicate
+     */
+    public NearCacheIdempotenceStorage(IdempotenceStorage storage, long maxRecentIds, long recentTtlSeconds) {
+        this(storage, maxRecentIds, recentTtlSeconds, null);
+    }
+
+    /**
+     * Constructor with a rotating Bloom filter, which remembers each ID for one to two windows and takes about
+     * 2 * 1.44 * log2(2 / falsePositiveRate) bits per expected ID
+     * @param storage the wrapped storage
+     * @param maxRecentIds the maximum number of IDs in the local cache, the least recently used ones are evicted first
+     * @param recentTtlSeconds how long an ID stays in the local cache after it is saved or found to be a duplicate
+     * @param expectedIdsPerWindow the number of IDs expected to be saved in one Bloom filter window
+     * @param falsePositiveRate the rate of new IDs wrongly rejected, when a window has the expected number of IDs
+     * @param bloomWindowSeconds the Bloom filter rotation window in seconds
+     */
+    public NearCacheIdempotenceStorage(IdempotenceStorage storage, long maxRecentIds, long recentTtlSeconds,
+                                       long expectedIdsPerWindow, double falsePositiveRate, long bloomWindowSeconds) {
+        this(storage, maxRecentIds, recentTtlSeconds,
+                new RotatingBloomFilter(expectedIdsPerWindow, falsePositiveRate, bloomWindowSeconds));
+    }
+
+    private NearCacheIdempotenceStorage(IdempotenceStorage storage, long maxRecentIds, long recentTtlSeconds,
+                                        RotatingBloomFilter bloomFilter) {
+        if (storage == null) {
+            throw new IllegalArgumentException("Storage must not be null");
+        }
+        if (maxRecentIds <= 0) {
+            throw new IllegalArgumentException("Max recent IDs must be positive");
+        }
+        if (recentTtlSeconds <= 0) {
+            throw new IllegalArgumentException("Recent TTL seconds must be positive");
+        }
+        this.storage = storage;
+        this.recentIds = CacheBuilder.newBuilder()
+                .maximumSize(maxRecentIds)
+                .expireAfterWrite(recentTtlSeconds, TimeUnit.SECONDS)
+                .build();
+        this.bloomFilter = bloomFilter;
+        this.bloomFilterBypassUntilNanos = System.nanoTime();
+        // A tombstone has to outlive the Bloom filter generations that may still hold the ID
+        this.deletedIds = bloomFilter == null ? null : CacheBuilder.newBuilder()
+                .maximumSize(2 * bloomFilter.getExpectedIdsPerWindow())
+                .expireAfterWrite(2 * bloomFilter.getWindowSeconds(), TimeUnit.SECONDS)
+                .<Object, Boolean>removalListener(notification -> {
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        bypassBloomFilter();
+                    }
+                })
+                .build();
+    }
+
+    @Override
+    public boolean saveIfAbsent(String idempotenceId) {
+        return save(idempotenceId, () -> storage.saveIfAbsent(idempotenceId));
+    }
+
+    @Override
+    public void delete(String idempotenceId) {
+        forget(idempotenceId);
+        storage.delete(idempotenceId);
+    }
+
+    @Override
+    public boolean saveIfAbsent(byte[] idempotenceId) {
+        // Cached under a wrapper compared by content, the wrapped storage still gets the binary ID
+        return save(new BinaryId(idempotenceId), () -> storage.saveIfAbsent(idempotenceId));
+    }
+
+    @Override
+    public void delete(byte[] idempotenceId) {
+        forget(new BinaryId(idempotenceId));
+        storage.delete(idempotenceId);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> saveIfAbsentAsync(String idempotenceId) {
+        return saveAsync(idempotenceId, () -> storage.saveIfAbsentAsync(idempotenceId));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String idempotenceId) {
+        forget(idempotenceId);
+        return storage.deleteAsync(idempotenceId);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> saveIfAbsentAsync(byte[] idempotenceId) {
+        return saveAsync(new BinaryId(idempotenceId), () -> storage.saveIfAbsentAsync(idempotenceId));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(byte[] idempotenceId) {
+        forget(new BinaryId(idempotenceId));
+        return storage.deleteAsync(idempotenceId);
+    }
+
+    @Override
+    public boolean[] saveAllIfAbsent(Collection<String> idempotenceIds) {
+        return saveAll(idempotenceIds, idempotenceId -> idempotenceId, storage::saveAllIfAbsent);
+    }
+
+    @Override
+    public void deleteAll(Collection<String> idempotenceIds) {
+        for (String idempotenceId : idempotenceIds) {
+            forget(idempotenceId);
+        }
+        storage.deleteAll(idempotenceIds);
+    }
+
+    @Override
+    public boolean[] saveAllBinaryIfAbsent(Collection<byte[]> idempotenceIds) {
+        return saveAll(idempotenceIds, BinaryId::new, storage::saveAllBinaryIfAbsent);
+    }
+
+    @Override
+    public void deleteAllBinary(Collection<byte[]> idempotenceIds) {
+        for (byte[] idempotenceId : idempotenceIds) {
+            forget(new BinaryId(idempotenceId));
+        }
+        storage.deleteAllBinary(idempotenceIds);
+    }
+
+    /**
+     * @return hit counts of the local tier and the size of its Bloom filter
+     */
+    public Stats getStats() {
+        if (bloomFilter == null) {
+            return new Stats(cacheHits.sum(), bloomFilterHits.sum(), storageCalls.sum(), recentIds.size(), 0, 0, 0);
+        }
+        return new Stats(cacheHits.sum(), bloomFilterHits.sum(), storageCalls.sum(), recentIds.size(),
+                bloomFilter.getMemoryBytes(), bloomFilter.getFalsePositiveRate(),
+                bloomFilter.getEstimatedFalsePositiveRate());
+    }
+
+    /**
+     * @param key a String ID or a BinaryId
+     */
+    private boolean save(Object key, BooleanSupplier save) {
+        if (isKnownDuplicate(key)) {
+            return false;
+        }
+        storageCalls.increment();
+        boolean saved = save.getAsBoolean();
+        remember(key);
+        return saved;
+    }
+
+    private CompletableFuture<Boolean> saveAsync(Object key, Supplier<CompletableFuture<Boolean>> save) {
+        if (isKnownDuplicate(key)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        storageCalls.increment();
+        return save.get().thenApply(saved -> {
+            remember(key);
+            return saved;
+        });
+    }
+
+    private <T> boolean[] saveAll(Collection<T> idempotenceIds, Function<T, Object> toKey,
+                                  Function<List<T>, boolean[]> save) {
+        boolean[] results = new boolean[idempotenceIds.size()];
+        List<T> unknownIds = new ArrayList<>();
+        List<Object> unknownKeys = new ArrayList<>();
+        List<Integer> unknownIndexes = new ArrayList<>();
+        int i = 0;
+        for (T idempotenceId : idempotenceIds) {
+            Object key = toKey.apply(idempotenceId);
+            if (!isKnownDuplicate(key)) {
+                unknownIds.add(idempotenceId);
+                unknownKeys.add(key);
+                unknownIndexes.add(i);
+            }
+            i++;
+        }
+        if (unknownIds.isEmpty()) {
+            return results;
+        }
+        storageCalls.add(unknownIds.size());
+        boolean[] saved = save.apply(unknownIds);
+        for (int j = 0; j < unknownIds.size(); j++) {
+            results[unknownIndexes.get(j)] = saved[j];
+            remember(unknownKeys.get(j));
+        }
+        return results;
+    }
+
+    private boolean isKnownDuplicate(Object key) {
+        if (recentIds.getIfPresent(key) != null) {
+            cacheHits.increment();
+            return true;
+        }
+        if (bloomFilter != null && System.nanoTime() - bloomFilterBypassUntilNanos >= 0
+                && deletedIds.getIfPresent(key) == null && bloomFilter.mightContain(key)) {
+            bloomFilterHits.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private void remember(Object key) {
+        Object retained = retained(key);
+        recentIds.put(retained, Boolean.TRUE);
+        if (bloomFilter != null) {
+            bloomFilter.put(retained);
+            deletedIds.invalidate(retained);
+        }
+    }
+
+    private void forget(Object key) {
+        recentIds.invalidate(key);
+        if (bloomFilter != null) {
+            deletedIds.put(retained(key), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Keys kept in the caches must not share the caller's array, which may be reused for the next ID
+     */
+    private static Object retained(Object key) {
+        return key instanceof BinaryId ? ((BinaryId) key).copy() : key;
+    }
+
+    /**
+     * The evicted tombstone's ID may still be in both Bloom filter generations, which are gone two windows from now
+     */
+    private void bypassBloomFilter() {
+        bloomFilterBypassUntilNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(2 * bloomFilter.getWindowSeconds());
+    }
+
+    /**
+     * Counters of the local tier, and the Bloom filter size and false positive rates, which are 0 without a Bloom filter
+     */
+    public static final class Stats {
+        private final long cacheHits;
+        private final long bloomFilterHits;
+        private final long storageCalls;
+        private final long recentIds;
+        private final long bloomFilterMemoryBytes;
+        private final double bloomFilterFalsePositiveRate;
+        private final double bloomFilterEstimatedFalsePositiveRate;
+
+        Stats(long cacheHits, long bloomFilterHits, long storageCalls, long recentIds, long bloomFilterMemoryBytes,
+              double bloomFilterFalsePositiveRate, double bloomFilterEstimatedFalsePositiveRate) {
+            this.cacheHits = cacheHits;
+            this.bloomFilterHits = bloomFilterHits;
+            this.storageCalls = storageCalls;
+            this.recentIds = recentIds;
+            this.bloomFilterMemoryBytes = bloomFilterMemoryBytes;
+            this.bloomFilterFalsePositiveRate = bloomFilterFalsePositiveRate;
+            this.bloomFilterEstimatedFalsePositiveRate = bloomFilterEstimatedFalsePositiveRate;
+        }
+
+        /**
+         * @return duplicates answered by the local cache
+         */
+        public long getCacheHits() {
+            return cacheHits;
+        }
+
+        /**
+         * @return duplicates answered by the Bloom filter, including its false positives
+         */
+        public long getBloomFilterHits() {
+            return bloomFilterHits;
+        }
+
+        /**
+         * @return IDs passed to the wrapped storage
+         */
+        public long getStorageCalls() {
+            return storageCalls;
+        }
+
+        /**
+         * @return approximate number of IDs in the local cache
+         */
+        public long getRecentIds() {
+            return recentIds;
+        }
+
+        public long getBloomFilterMemoryBytes() {
+            return bloomFilterMemoryBytes;
+        }
+
+        /**
+         * @return the configured false positive budget
+         */
+        public double getBloomFilterFalsePositiveRate() {
+            return bloomFilterFalsePositiveRate;
+        }
+
+        /**
+         * @return the false positive rate estimated from the bits set so far
+         */
+        public double getBloomFilterEstimatedFalsePositiveRate() {
+            return bloomFilterEstimatedFalsePositiveRate;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{cacheHits=" + cacheHits
+                    + ", bloomFilterHits=" + bloomFilterHits
+                    + ", storageCalls=" + storageCalls
+                    + ", recentIds=" + recentIds
+                    + ", bloomFilterMemoryBytes=" + bloomFilterMemoryBytes
+                    + ", bloomFilterFalsePositiveRate=" + bloomFilterFalsePositiveRate
+                    + ", bloomFilterEstimatedFalsePositiveRate=" + bloomFilterEstimatedFalsePositiveRate + "}";
+        }
+    }
+}
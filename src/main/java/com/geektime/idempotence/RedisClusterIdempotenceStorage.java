@@ -1,22 +1,61 @@
 package com.geektime.idempotence;
 
+import com.geektime.redis.RedisClusterSupport;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.ConnectionPool;
 import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
 import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.util.JedisClusterCRC16;
+import redis.clients.jedis.util.SafeEncoder;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Redis cluster based implementation of IdempotenceStorage
+ * Redis cluster based implementation of IdempotenceStorage.
+ * Batch operations group IDs by the node that owns their slot and send each group as one pipeline,
+ * with the pipelines to different nodes running in parallel, so a batch costs about one round trip
+ * instead of one per ID. The slot to node mapping is read with CLUSTER SLOTS and reloaded after a
+ * redirection; IDs that get MOVED or ASK replies are retried one by one through JedisCluster.
+ * The pipelines run on a bounded pool; when it is busy the calling thread runs them itself.
+ * If any pipeline of saveAllIfAbsent fails, the IDs this call has already saved are deleted before
+ * the exception is rethrown, so a retry of the whole batch does not see them as duplicates.
+ * Jedis has no non-blocking client, so the async operations run the blocking calls on a bounded I/O pool;
+ * when its queue is full they fail fast with a RejectedExecutionException instead of queueing without limit.
  */
-public class RedisClusterIdempotenceStorage implements IdempotenceStorage {
+public class RedisClusterIdempotenceStorage implements IdempotenceStorage, AutoCloseable {
     private static final long DEFAULT_EXPIRATION_SECONDS = TimeUnit.HOURS.toSeconds(24); // 24 hours default
+    private static final int DEFAULT_IO_THREADS = 16;
+    private static final int PENDING_IO_PER_THREAD = 256;
+    private static final int DEFAULT_PIPELINE_THREADS = 16;
+    private static final int PENDING_PIPELINES_PER_THREAD = 64;
+    private static final byte[] VALUE = {'1'};
     private final JedisCluster jedisCluster;
     private final long expirationSeconds;
+    private final boolean ownsCluster;
+    // Runs the pipelines of all but one node of a batch, the calling thread runs the last one itself
+    private final ExecutorService pipelineExecutor = RedisClusterSupport.newPipelineExecutor(
+            "idempotence-redis-%d", DEFAULT_PIPELINE_THREADS, PENDING_PIPELINES_PER_THREAD);
+    // Runs the blocking calls of async operations
+    private final ExecutorService ioExecutor;
 
     /**
      * Constructor
@@ -37,6 +76,8 @@ public class RedisClusterIdempotenceStorage implements IdempotenceStorage {
         Set<HostAndPort> redisNodes = parseHostAndPorts(redisClusterAddress);
         this.jedisCluster = new JedisCluster(redisNodes);
         this.expirationSeconds = expirationSeconds;
+        this.ownsCluster = true;
+        this.ioExecutor = newIoExecutor(DEFAULT_IO_THREADS);
     }
 
     /**
@@ -49,12 +90,27 @@ public class RedisClusterIdempotenceStorage implements IdempotenceStorage {
 
     /**
      * Constructor with existing JedisCluster and expiration time
-     * @param jedisCluster the JedisCluster instance
+     * @param jedisCluster the JedisCluster instance, which is not closed on close
      * @param expirationSeconds expiration time in seconds for idempotence IDs
      */
     public RedisClusterIdempotenceStorage(JedisCluster jedisCluster, long expirationSeconds) {
+        this(jedisCluster, expirationSeconds, DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * Constructor with existing JedisCluster, expiration time and the size of the I/O pool for async operations
+     * @param jedisCluster the JedisCluster instance, which is not closed on close
+     * @param expirationSeconds expiration time in seconds for idempotence IDs
+     * @param ioThreads threads running async operations, at most 256 operations per thread are queued
+     */
+    public RedisClusterIdempotenceStorage(JedisCluster jedisCluster, long expirationSeconds, int ioThreads) {
+        if (ioThreads <= 0) {
+            throw new IllegalArgumentException("IO threads must be positive");
+        }
         this.jedisCluster = jedisCluster;
         this.expirationSeconds = expirationSeconds;
+        this.ownsCluster = false;
+        this.ioExecutor = newIoExecutor(ioThreads);
     }
 
     @Override
@@ -68,6 +124,143 @@ public class RedisClusterIdempotenceStorage implements IdempotenceStorage {
         jedisCluster.del(idempotenceId);
     }
 
+    /**
+     * Save a binary idempotenceId as a binary redis key, 12 bytes for a generated binary ID
+     */
+    @Override
+    public boolean saveIfAbsent(byte[] idempotenceId) {
+        String result = jedisCluster.set(idempotenceId, VALUE, SetParams.setParams().nx().ex(expirationSeconds));
+        return result != null;
+    }
+
+    @Override
+    public void delete(byte[] idempotenceId) {
+        jedisCluster.del(idempotenceId);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> saveIfAbsentAsync(String idempotenceId) {
+        try {
+            return CompletableFuture.supplyAsync(() -> saveIfAbsent(idempotenceId), ioExecutor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String idempotenceId) {
+        try {
+            return CompletableFuture.runAsync(() -> delete(idempotenceId), ioExecutor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> saveIfAbsentAsync(byte[] idempotenceId) {
+        try {
+            return CompletableFuture.supplyAsync(() -> saveIfAbsent(idempotenceId), ioExecutor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(byte[] idempotenceId) {
+        try {
+            return CompletableFuture.runAsync(() -> delete(idempotenceId), ioExecutor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public boolean[] saveAllIfAbsent(Collection<String> idempotenceIds) {
+        // Jedis sends String keys as UTF-8 bytes, so both forms share the binary batch
+        return saveAllBinaryIfAbsent(encode(idempotenceIds));
+    }
+
+    @Override
+    public void deleteAll(Collection<String> idempotenceIds) {
+        deleteAllBinary(encode(idempotenceIds));
+    }
+
+    @Override
+    public boolean[] saveAllBinaryIfAbsent(Collection<byte[]> idempotenceIds) {
+        SetParams params = SetParams.setParams().nx().ex(expirationSeconds);
+        List<byte[]> ids = toList(idempotenceIds);
+        boolean[] results = new boolean[ids.size()];
+        try {
+            executeByNode(ids, results, new BatchCommand() {
+                @Override
+                public Response<?> append(Pipeline pipeline, byte[] idempotenceId) {
+                    return pipeline.set(idempotenceId, VALUE, params);
+                }
+
+                @Override
+                public boolean result(Object response) {
+                    return response != null;
+                }
+
+                @Override
+                public boolean executeSingle(byte[] idempotenceId) {
+                    return saveIfAbsent(idempotenceId);
+                }
+            });
+        } catch (RuntimeException e) {
+            // IDs of the failed pipelines are unknown, but the ones saved by this call must not block a retry
+            List<byte[]> saved = new ArrayList<>();
+            for (int i = 0; i < results.length; i++) {
+                if (results[i]) {
+                    saved.add(ids.get(i));
+                }
+            }
+            if (!saved.isEmpty()) {
+                try {
+                    deleteAllBinary(saved);
+                } catch (RuntimeException deleteFailure) {
+                    e.addSuppressed(deleteFailure);
+                }
+            }
+            throw e;
+        }
+        return results;
+    }
+
+    @Override
+    public void deleteAllBinary(Collection<byte[]> idempotenceIds) {
+        List<byte[]> ids = toList(idempotenceIds);
+        executeByNode(ids, new boolean[ids.size()], new BatchCommand() {
+            @Override
+            public Response<?> append(Pipeline pipeline, byte[] idempotenceId) {
+                return pipeline.del(idempotenceId);
+            }
+
+            @Override
+            public boolean result(Object response) {
+                return true;
+            }
+
+            @Override
+            public boolean executeSingle(byte[] idempotenceId) {
+                delete(idempotenceId);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Stop the pipeline and I/O threads, and close the JedisCluster if it is created by this storage
+     */
+    @Override
+    public void close() {
+        pipelineExecutor.shutdown();
+        ioExecutor.shutdown();
+        if (ownsCluster) {
+            jedisCluster.close();
+        }
+    }
+
     @VisibleForTesting
     protected Set<HostAndPort> parseHostAndPorts(String redisClusterAddress) {
         String[] addressArray = redisClusterAddress.split(";");
@@ -78,4 +271,95 @@ public class RedisClusterIdempotenceStorage implements IdempotenceStorage {
         }
         return redisNodes;
     }
-} 
\ No newline at end of file
+
+    private static ExecutorService newIoExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * PENDING_IO_PER_THREAD),
+                new ThreadFactoryBuilder().setNameFormat("idempotence-redis-io-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static List<byte[]> toList(Collection<byte[]> idempotenceIds) {
+        return idempotenceIds instanceof List ? (List<byte[]>) idempotenceIds : new ArrayList<>(idempotenceIds);
+    }
+
+    private static List<byte[]> encode(Collection<String> idempotenceIds) {
+        List<byte[]> keys = new ArrayList<>(idempotenceIds.size());
+        for (String idempotenceId : idempotenceIds) {
+            keys.add(SafeEncoder.encode(idempotenceId));
+        }
+        return keys;
+    }
+
+    /**
+     * Run the command for all IDs and store the per-ID results; when a node fails, the results of the other
+     * nodes are still filled in before the first failure is thrown
+     */
+    private void executeByNode(List<byte[]> ids, boolean[] results, BatchCommand command) {
+        if (ids.size() <= 1) {
+            if (ids.size() == 1) {
+                results[0] = command.executeSingle(ids.get(0));
+            }
+            return;
+        }
+        // IDs of one node keep their relative order, so a repeated ID is only saved by its first occurrence
+        Map<String, List<Integer>> byNode = new HashMap<>();
+        String[] owners = RedisClusterSupport.slotOwners(jedisCluster);
+        for (int i = 0; i < ids.size(); i++) {
+            byNode.computeIfAbsent(owners[JedisClusterCRC16.getSlot(ids.get(i))], k -> new ArrayList<>()).add(i);
+        }
+        Map<String, ConnectionPool> nodes = jedisCluster.getClusterNodes();
+        List<Runnable> tasks = new ArrayList<>(byNode.size());
+        for (Map.Entry<String, List<Integer>> group : byNode.entrySet()) {
+            ConnectionPool pool = nodes.get(group.getKey());
+            tasks.add(() -> executeOnNode(pool, ids, group.getValue(), command, results));
+        }
+        RedisClusterSupport.runInParallel(pipelineExecutor, tasks);
+    }
+
+    private void executeOnNode(ConnectionPool pool, List<byte[]> ids, List<Integer> indexes,
+                               BatchCommand command, boolean[] results) {
+        List<Integer> redirected = new ArrayList<>();
+        if (pool == null) {
+            // The node is not known to JedisCluster yet, the slot table is stale
+            RedisClusterSupport.invalidateSlotOwners(jedisCluster);
+            redirected = indexes;
+        } else {
+            try (Connection connection = pool.getResource()) {
+                Pipeline pipeline = new Pipeline(connection);
+                List<Response<?>> responses = new ArrayList<>(indexes.size());
+                for (int index : indexes) {
+                    responses.add(command.append(pipeline, ids.get(index)));
+                }
+                pipeline.sync();
+                for (int i = 0; i < indexes.size(); i++) {
+                    try {
+                        results[indexes.get(i)] = command.result(responses.get(i).get());
+                    } catch (JedisRedirectionException e) {
+                        RedisClusterSupport.invalidateSlotOwners(jedisCluster);
+                        redirected.add(indexes.get(i));
+                    }
+                }
+            }
+        }
+        // JedisCluster follows MOVED and ASK replies and refreshes its own slot cache
+        for (int index : redirected) {
+            results[index] = command.executeSingle(ids.get(index));
+        }
+    }
+
+    /**
+     * A single-key command sent in pipelines by batch operations
+     */
+    private interface BatchCommand {
+        Response<?> append(Pipeline pipeline, byte[] idempotenceId);
+
+        boolean result(Object response);
+
+        /**
+         * Execute the command for one ID through JedisCluster, used for single IDs and redirected IDs
+         */
+        boolean executeSingle(byte[] idempotenceId);
+    }
+}
@@ -0,0 +1,187 @@
+package com.geektime.idempotence;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Bloom filter that forgets old IDs by rotating two generations.
+ * IDs are added to the current generation and looked up in both; once per window the previous generation
+ * is dropped and the current one becomes previous, so an ID is remembered for one to two windows.
+ * Each generation is sized for half of the false positive budget, since a lookup can hit either of them.
+ * Adding and looking up are lock-free; rotation happens lazily on access.
+ */
+final class RotatingBloomFilter {
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    // Bit indexes are ints
+    private static final long MAX_BITS = Integer.MAX_VALUE;
+
+    private final long expectedIdsPerWindow;
+    private final long windowSeconds;
+    private final long windowNanos;
+    private final double falsePositiveRate;
+    private final int bitsPerGeneration;
+    private final int numHashes;
+    private volatile Generation current;
+    private volatile Generation previous;
+    private volatile long rotatedAtNanos;
+
+    /**
+     * @param expectedIdsPerWindow the number of IDs expected to be added in one window
+     * @param falsePositiveRate the false positive budget of a lookup, when each window adds the expected number of IDs
+     * @param windowSeconds the rotation window in seconds
+     */
+    RotatingBloomFilter(long expectedIdsPerWindow, double falsePositiveRate, long windowSeconds) {
+        if (expectedIdsPerWindow <= 0) {
+            throw new IllegalArgumentException("Expected IDs per window must be positive");
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("False positive rate must be in (0, 1)");
+        }
+        if (windowSeconds <= 0) {
+            throw new IllegalArgumentException("Window seconds must be positive");
+        }
+        double generationRate = falsePositiveRate / 2;
+        long bits = (long) Math.ceil(-expectedIdsPerWindow * Math.log(generationRate) / (Math.log(2) * Math.log(2)));
+        if (bits > MAX_BITS) {
+            throw new IllegalArgumentException("Bloom filter needs " + bits + " bits per generation, more than " + MAX_BITS);
+        }
+        // Capped before rounding up to whole words, so the rounded count still fits in an int
+        this.bitsPerGeneration = (int) ((Math.min(bits, MAX_BITS & ~63L) + 63) & ~63L);
+        this.numHashes = Math.max(1, (int) Math.round((double) bitsPerGeneration / expectedIdsPerWindow * Math.log(2)));
+        this.expectedIdsPerWindow = expectedIdsPerWindow;
+        this.falsePositiveRate = falsePositiveRate;
+        this.windowSeconds = windowSeconds;
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+        this.current = new Generation(bitsPerGeneration);
+        this.previous = new Generation(bitsPerGeneration);
+        this.rotatedAtNanos = System.nanoTime();
+    }
+
+    /**
+     * @param id a String or a BinaryId
+     */
+    void put(Object id) {
+        rotateIfNeeded();
+        long hash = hash(id);
+        Generation generation = current;
+        for (int i = 1; i <= numHashes; i++) {
+            generation.set(index(hash, i));
+        }
+    }
+
+    /**
+     * @param id a String or a BinaryId
+     */
+    boolean mightContain(Object id) {
+        rotateIfNeeded();
+        long hash = hash(id);
+        return current.containsAll(hash) || previous.containsAll(hash);
+    }
+
+    /**
+     * @return the memory held by the bit arrays of both generations, in bytes
+     */
+    long getMemoryBytes() {
+        return 2L * bitsPerGeneration / Byte.SIZE;
+    }
+
+    double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * @return the false positive rate of a lookup estimated from the bits set so far,
+     * above the budget when more IDs than expected are added in a window
+     */
+    double getEstimatedFalsePositiveRate() {
+        rotateIfNeeded();
+        return 1 - (1 - current.falsePositiveRate()) * (1 - previous.falsePositiveRate());
+    }
+
+    long getExpectedIdsPerWindow() {
+        return expectedIdsPerWindow;
+    }
+
+    long getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    int getNumHashes() {
+        return numHashes;
+    }
+
+    private void rotateIfNeeded() {
+        if (System.nanoTime() - rotatedAtNanos >= windowNanos) {
+            rotate();
+        }
+    }
+
+    private synchronized void rotate() {
+        long now = System.nanoTime();
+        long elapsed = now - rotatedAtNanos;
+        if (elapsed < windowNanos) {
+            return;
+        }
+        // After two idle windows the current generation is too old to keep as well
+        previous = elapsed < 2 * windowNanos ? current : new Generation(bitsPerGeneration);
+        current = new Generation(bitsPerGeneration);
+        rotatedAtNanos = now;
+    }
+
+    private static long hash(Object id) {
+        return id instanceof BinaryId
+                ? HASH_FUNCTION.hashBytes(((BinaryId) id).bytes()).asLong()
+                : HASH_FUNCTION.hashUnencodedChars((String) id).asLong();
+    }
+
+    /**
+     * Kirsch-Mitzenmacher double hashing on the two halves of a 64-bit hash, as Guava's BloomFilter does
+     */
+    private int index(long hash, int i) {
+        int combined = (int) hash + i * (int) (hash >>> 32);
+        if (combined < 0) {
+            combined = ~combined;
+        }
+        return combined % bitsPerGeneration;
+    }
+
+    private final class Generation {
+        private final AtomicLongArray words;
+        private final LongAdder bitCount = new LongAdder();
+
+        Generation(int bits) {
+            this.words = new AtomicLongArray(bits / Long.SIZE);
+        }
+
+        void set(int index) {
+            int word = index >>> 6;
+            long mask = 1L << index;
+            long value;
+            do {
+                value = words.get(word);
+                if ((value & mask) != 0) {
+                    return;
+                }
+            } while (!words.compareAndSet(word, value, value | mask));
+            bitCount.increment();
+        }
+
+        boolean containsAll(long hash) {
+            for (int i = 1; i <= numHashes; i++) {
+                int index = index(hash, i);
+                if ((words.get(index >>> 6) & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        double falsePositiveRate() {
+            return Math.pow((double) bitCount.sum() / bitsPerGeneration, numHashes);
+        }
+    }
+}
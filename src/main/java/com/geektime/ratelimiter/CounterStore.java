@@ -0,0 +1,367 @@
+package com.geektime.ratelimiter;
+
+import com.geektime.ratelimiter.alg.RateLimitAlg;
+import com.geektime.ratelimiter.rule.ApiLimit;
+import com.geektime.ratelimiter.timer.HashedWheelTimer;
+import com.geektime.ratelimiter.timer.Timeout;
+import com.geektime.ratelimiter.timer.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * @Description: 有容量上限、会淘汰空闲计数器的限流计数器存储
+ * 计数器按规则（ApiLimit）存放，并预绑定到ApiLimit上，请求热路径不访问本存储，也不记录访问时间。
+ * 空闲判断直接看计数器状态：RateLimitAlg.isIdle()为true说明丢弃后重建不改变限流结果。
+ * 每个计数器创建时在共享时间轮上登记一个过期检查，每隔其规则的时间窗口（且不少于一个扫描周期）检查一次，
+ * 连续两次检查都空闲时淘汰，淘汰时同时解除与ApiLimit的绑定，下次命中规则时重新创建。
+ * 与定期全量扫描相比，检查分散在各计数器各自的时刻，计数器很多时也不会周期性地集中占用CPU。
+ *
+ * 计数器总数超过maxSize时，在后台线程上淘汰所有空闲计数器；仍然超出时按当前计数从小到大淘汰，
+ * 直到降到maxSize的90%，分摊每次淘汰的排序开销。淘汰不在创建计数器的请求线程上执行，
+ * 因此淘汰完成前计数器总数可能短暂超出maxSize；告警日志每分钟最多输出一次。
+ * 按容量淘汰非空闲计数器会丢失其状态，应把maxSize设置得足够大，使其只在异常情况下触发。
+ *
+ * 解除绑定与请求线程读取计数器之间存在极小的竞争窗口，淘汰后若发现计数器又被使用，会尝试重新绑定。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:02
+ **/
+public class CounterStore implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(CounterStore.class);
+    public static final int DEFAULT_MAX_SIZE = 100_000;
+    public static final long DEFAULT_SWEEP_INTERVAL_MS = 10_000;
+    private static final double SHRINK_RATIO = 0.9;
+    private static final long NOT_IDLE = Long.MIN_VALUE;
+    private static final long SHRINK_WARN_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final ConcurrentHashMap<ApiLimit, Entry> counters = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final long sweepIntervalNanos;
+    private final Ticker ticker;
+    private final AtomicBoolean shrinkScheduled = new AtomicBoolean(false);
+    // 以下两个字段只在shrink()中读写，shrink()同一时刻只在一个线程上执行
+    private long lastShrinkWarnNanos;
+    private int shrinksSinceWarn;
+    // 驱动空闲检查的时间轮，sweepIntervalMs小于等于0时为null
+    private final Timer timer;
+    private volatile boolean closed;
+
+    private final LongAdder idleEvictions = new LongAdder();
+    private final LongAdder sizeEvictions = new LongAdder();
+    private final LongAdder creations = new LongAdder();
+
+    public CounterStore() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_SWEEP_INTERVAL_MS);
+    }
+
+    /**
+     * @param maxSize 计数器数量上限
+     * @param sweepIntervalMs 空闲检查的最小间隔（毫秒），小于等于0时不在后台检查，只能手动调用sweep()
+     */
+    public CounterStore(int maxSize, long sweepIntervalMs) {
+        this(maxSize, sweepIntervalMs, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    protected CounterStore(int maxSize, long sweepIntervalMs, Ticker ticker) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Max size must be positive");
+        }
+        this.maxSize = maxSize;
+        this.sweepIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, sweepIntervalMs));
+        this.ticker = ticker;
+        this.timer = sweepIntervalMs > 0 ? HashedWheelTimer.getDefault() : null;
+        log.info("Created CounterStore with max size: {}, sweep interval: {}ms", maxSize, sweepIntervalMs);
+    }
+
+    /**
+     * 获取规则对应的计数器，不存在时通过factory创建
+     * @param apiLimit 限流规则
+     * @param factory 计数器工厂
+     * @return 规则对应的计数器
+     */
+    public RateLimitAlg getOrCreate(ApiLimit apiLimit, Function<ApiLimit, RateLimitAlg> factory) {
+        Entry entry = counters.get(apiLimit);
+        if (entry == null) {
+            Entry newEntry = new Entry(factory.apply(apiLimit));
+            entry = counters.putIfAbsent(apiLimit, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+                creations.increment();
+                scheduleExpiry(apiLimit, entry);
+                if (counters.size() > maxSize) {
+                    scheduleShrink();
+                }
+            }
+        }
+        return entry.counter;
+    }
+
+    /**
+     * 移除规则对应的计数器，用于规则被删除或修改时
+     * @param apiLimit 限流规则
+     */
+    public void remove(ApiLimit apiLimit) {
+        Entry entry = counters.remove(apiLimit);
+        if (entry != null) {
+            apiLimit.unbindCounter(entry.counter);
+            entry.cancelExpiry();
+        }
+    }
+
+    public int size() {
+        return counters.size();
+    }
+
+    /**
+     * 扫描一遍所有计数器，淘汰空闲时间超过其时间窗口的计数器
+     * @return 本次淘汰的计数器数量
+     */
+    public int sweep() {
+        long now = ticker.read();
+        int evicted = 0;
+        for (Map.Entry<ApiLimit, Entry> mapEntry : counters.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (!entry.counter.isIdle()) {
+                entry.idleSinceNanos = NOT_IDLE;
+                continue;
+            }
+            if (entry.idleSinceNanos == NOT_IDLE) {
+                entry.idleSinceNanos = now;
+                continue;
+            }
+            if (now - entry.idleSinceNanos >= idleThresholdNanos(mapEntry.getKey()) && evict(mapEntry.getKey(), entry, false)) {
+                idleEvictions.increment();
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            log.info("Evicted {} idle rate limit counters, {} remaining", evicted, counters.size());
+        }
+        return evicted;
+    }
+
+    /**
+     * @return 当前的淘汰统计
+     */
+    public Stats stats() {
+        return new Stats(counters.size(), creations.sum(), idleEvictions.sum(), sizeEvictions.sum());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Entry entry : counters.values()) {
+            entry.cancelExpiry();
+        }
+    }
+
+    private long idleThresholdNanos(ApiLimit apiLimit) {
+        return Math.max(sweepIntervalNanos, TimeUnit.SECONDS.toNanos(apiLimit.getUnit()));
+    }
+
+    private void scheduleExpiry(ApiLimit apiLimit, Entry entry) {
+        if (timer == null || closed) {
+            return;
+        }
+        entry.expiry = timer.newTimeout(() -> checkExpiry(apiLimit, entry),
+                idleThresholdNanos(apiLimit), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 单个计数器的过期检查，在时间轮线程上执行：首次观察到空闲时记下时刻，再次检查仍空闲则淘汰，否则登记下一次检查
+     */
+    private void checkExpiry(ApiLimit apiLimit, Entry entry) {
+        if (closed || counters.get(apiLimit) != entry) {
+            return;
+        }
+        try {
+            if (!entry.counter.isIdle()) {
+                entry.idleSinceNanos = NOT_IDLE;
+            } else if (entry.idleSinceNanos == NOT_IDLE) {
+                entry.idleSinceNanos = ticker.read();
+            } else if (evict(apiLimit, entry, false)) {
+                idleEvictions.increment();
+                log.debug("Evicted idle rate limit counter for appId: {}, api: {}", apiLimit.getAppId(), apiLimit.getApi());
+                return;
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to check idle rate limit counter for appId: {}, api: {}",
+                    apiLimit.getAppId(), apiLimit.getApi(), e);
+        }
+        scheduleExpiry(apiLimit, entry);
+    }
+
+    /**
+     * 把淘汰交给后台线程，已登记过且尚未执行时不重复登记
+     */
+    private void scheduleShrink() {
+        if (closed || !shrinkScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ShrinkExecutorHolder.EXECUTOR.execute(this::shrink);
+        } catch (RejectedExecutionException e) {
+            shrinkScheduled.set(false);
+            log.warn("Rate limit counter shrink rejected by executor");
+        }
+    }
+
+    /**
+     * 超出容量时淘汰计数器，在后台线程上执行
+     */
+    private void shrink() {
+        try {
+            List<Map.Entry<ApiLimit, Entry>> busy = new ArrayList<>();
+            for (Map.Entry<ApiLimit, Entry> mapEntry : counters.entrySet()) {
+                if (mapEntry.getValue().counter.isIdle()) {
+                    if (evict(mapEntry.getKey(), mapEntry.getValue(), false)) {
+                        sizeEvictions.increment();
+                    }
+                } else {
+                    busy.add(mapEntry);
+                }
+            }
+            int target = (int) (maxSize * SHRINK_RATIO);
+            if (counters.size() > target) {
+                // 计数随时在变，先取快照再排序
+                long[] order = new long[busy.size()];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = ((long) busy.get(i).getValue().counter.getCurrentCount() << 32) | i;
+                }
+                Arrays.sort(order);
+                for (long packed : order) {
+                    if (counters.size() <= target) {
+                        break;
+                    }
+                    Map.Entry<ApiLimit, Entry> mapEntry = busy.get((int) packed);
+                    if (evict(mapEntry.getKey(), mapEntry.getValue(), true)) {
+                        sizeEvictions.increment();
+                    }
+                }
+            }
+            logShrink();
+        } catch (RuntimeException e) {
+            log.error("Failed to shrink rate limit counters", e);
+        } finally {
+            shrinkScheduled.set(false);
+        }
+        // 淘汰期间又有新计数器创建并超出上限时，再登记一次
+        if (counters.size() > maxSize) {
+            scheduleShrink();
+        }
+    }
+
+    private void logShrink() {
+        shrinksSinceWarn++;
+        long now = ticker.read();
+        if (lastShrinkWarnNanos != 0 && now - lastShrinkWarnNanos < SHRINK_WARN_INTERVAL_NANOS) {
+            log.debug("Rate limit counters exceeded max size: {}, shrunk to {}", maxSize, counters.size());
+            return;
+        }
+        log.warn("Rate limit counters exceeded max size: {}, shrunk {} times since last warning, now {}",
+                maxSize, shrinksSinceWarn, counters.size());
+        lastShrinkWarnNanos = now;
+        shrinksSinceWarn = 0;
+    }
+
+    /**
+     * @param force 是否强制淘汰；非强制淘汰时，若解除绑定后发现计数器又被使用，会恢复绑定
+     */
+    private boolean evict(ApiLimit apiLimit, Entry entry, boolean force) {
+        if (!counters.remove(apiLimit, entry)) {
+            return false;
+        }
+        apiLimit.unbindCounter(entry.counter);
+        // 解除绑定前已取到计数器的请求可能刚刚计数，此时尽量恢复绑定，避免丢失计数
+        if (!force && !entry.counter.isIdle() && counters.putIfAbsent(apiLimit, entry) == null) {
+            apiLimit.bindCounter(entry.counter);
+            return false;
+        }
+        entry.cancelExpiry();
+        return true;
+    }
+
+    /**
+     * 所有CounterStore共用的淘汰线程，首次超出容量时才创建
+     */
+    private static final class ShrinkExecutorHolder {
+        static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("ratelimiter-counter-shrink-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    private static final class Entry {
+        final RateLimitAlg counter;
+        // 首次观察到空闲的时刻，NOT_IDLE表示非空闲；由过期检查或sweep()读写
+        volatile long idleSinceNanos = NOT_IDLE;
+        // 下一次过期检查
+        volatile Timeout expiry;
+
+        Entry(RateLimitAlg counter) {
+            this.counter = counter;
+        }
+
+        void cancelExpiry() {
+            Timeout timeout = expiry;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+
+    /**
+     * 计数器存储的统计快照
+     */
+    public static final class Stats {
+        private final int size;
+        private final long creationCount;
+        private final long idleEvictionCount;
+        private final long sizeEvictionCount;
+
+        Stats(int size, long creationCount, long idleEvictionCount, long sizeEvictionCount) {
+            this.size = size;
+            this.creationCount = creationCount;
+            this.idleEvictionCount = idleEvictionCount;
+            this.sizeEvictionCount = sizeEvictionCount;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getCreationCount() {
+            return creationCount;
+        }
+
+        public long getIdleEvictionCount() {
+            return idleEvictionCount;
+        }
+
+        public long getSizeEvictionCount() {
+            return sizeEvictionCount;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{size=" + size + ", creations=" + creationCount + ", idleEvictions=" + idleEvictionCount
+                    + ", sizeEvictions=" + sizeEvictionCount + "}";
+        }
+    }
+}
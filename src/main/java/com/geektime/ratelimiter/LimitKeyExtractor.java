@@ -0,0 +1,19 @@
+package com.geektime.ratelimiter;
+
+import com.geektime.ratelimiter.rule.LimitDimension;
+
+/**
+ * @Description: 从请求中提取限流维度值，例如从HTTP请求中取出用户ID或客户端IP
+ * 只有命中的规则配置了维度时才会被调用。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:02
+ **/
+@FunctionalInterface
+public interface LimitKeyExtractor<T> {
+    /**
+     * @param request 请求对象
+     * @param dimension 命中规则的限流维度
+     * @return 维度值，返回null时该请求按未提供维度值处理
+     */
+    String extract(T request, LimitDimension dimension);
+}
@@ -0,0 +1,65 @@
+package com.geektime.ratelimiter;
+
+/**
+ * @Description: 批量限流检查中的一项，对应一次 limit(appId, url, limitKey) 调用，可一次占用多个许可
+ * 
+ * 使用示例：
+ * List<LimitRequest> batch = new ArrayList<>();
+ * batch.add(new LimitRequest("app-1", "/api/v1/message", 20)); // 一批20条消息
+ * boolean[] passed = rateLimiter.limitBatch(batch);
+ * 
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:02
+ **/
+public class LimitRequest {
+    private final String appId;
+    private final String url;
+    private final int permits;
+    private final String limitKey;
+
+    public LimitRequest(String appId, String url) {
+        this(appId, url, 1);
+    }
+
+    public LimitRequest(String appId, String url, int permits) {
+        this(appId, url, permits, null);
+    }
+
+    /**
+     * @param appId 应用ID
+     * @param url 请求路径
+     * @param permits 占用的许可数，必须为正数
+     * @param limitKey 维度值，命中的规则未配置维度时忽略
+     */
+    public LimitRequest(String appId, String url, int permits, String limitKey) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive");
+        }
+        this.appId = appId;
+        this.url = url;
+        this.permits = permits;
+        this.limitKey = limitKey;
+    }
+
+    public String getAppId() {
+        return appId;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getPermits() {
+        return permits;
+    }
+
+    public String getLimitKey() {
+        return limitKey;
+    }
+
+    @Override
+    public String toString() {
+        return "LimitRequest{appId='" + appId + "', url='" + url + "', permits=" + permits
+                + (limitKey == null ? "" : ", limitKey='" + limitKey + "'") + "}";
+    }
+}
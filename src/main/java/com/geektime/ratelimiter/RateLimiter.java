@@ -1,68 +1,550 @@
 package com.geektime.ratelimiter;
 
-import com.geektime.ratelimiter.alg.FixedTimeWinRateLimitAlg;
+import com.geektime.ratelimiter.alg.KeyedRateLimitAlg;
 import com.geektime.ratelimiter.alg.RateLimitAlg;
+import com.geektime.ratelimiter.alg.RateLimitAlgFactory;
+import com.geektime.ratelimiter.alg.redis.RedisRateLimitAlg;
+import com.geektime.ratelimiter.metrics.LimiterMetrics;
+import com.geektime.ratelimiter.metrics.MetricsSnapshot;
 import com.geektime.ratelimiter.rule.ApiLimit;
 import com.geektime.ratelimiter.rule.RateLimitRule;
 import com.geektime.ratelimiter.rule.RuleConfig;
+import com.geektime.ratelimiter.rule.RuleConfigDiff;
 import com.geektime.ratelimiter.rule.TrieRateLimitRule;
 import com.geektime.ratelimiter.rule.datasource.FileRuleConfigSource;
+import com.geektime.ratelimiter.rule.datasource.RuleConfigListener;
 import com.geektime.ratelimiter.rule.datasource.RuleConfigSource;
+import com.geektime.ratelimiter.timer.HashedWheelTimer;
+import com.geektime.ratelimiter.timer.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @Description: 限流器
+ * 规则支持热更新：配置源推送新配置后，与当前生效的配置做差异比较，只增删改变化的规则；
+ * 变化较大时构建一份新的规则索引，再通过一次volatile写整体替换。
+ * 单条规则的替换对请求线程是原子的，不会看到构建到一半的规则。
+ * 配置未变化的规则沿用原有计数器，变化或删除的规则丢弃计数器，命中新规则时重新创建。
+ * 新增与修改的规则在加载时先经RateLimitAlgFactory校验，有非法规则时拒绝整份配置，原有规则保持不变。
+ * 计数器存放在有容量上限的CounterStore中，长期空闲的计数器会被淘汰；不再使用时应调用close()。
+ * 除立即返回结果的limit()外，还提供排队等待许可的acquire()与acquireAsync()，
+ * 按计数器给出的下次可用时间挂起或定时重试，不忙等。
+ * 被拒绝的请求不逐个打日志，由RejectionLogger按周期汇总输出，逐个请求的明细需通过setRejectionLogSampleRate()打开。
+ * 每条规则的放行/拒绝次数、判定耗时等指标可通过getMetrics()拉取。
  * @Author: dansheng
  * @CreateTime: 2025/2/6 17:02
  **/
-public class RateLimiter {
+public class RateLimiter implements AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(RateLimiter.class);
+    // 计数器无法给出下次可用时间（返回0）时的重试间隔
+    private static final long MIN_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // 默认异步重试线程池的线程数与排队上限，重试可能阻塞在Redis上，不使用公共ForkJoinPool
+    private static final int ASYNC_THREADS = 16;
+    private static final int ASYNC_QUEUE_CAPACITY = 4096;
     
-    // 为每个api在内存中存储限流计数器
-    private final ConcurrentHashMap<String, RateLimitAlg> counters = new ConcurrentHashMap<>();
-    private final RateLimitRule rule;
+    // 为每条规则在内存中存储限流计数器，key为规则配置本身，配置变化后自然对应新的计数器
+    private final CounterStore counters;
+    // 当前生效的规则索引，热更新时增量修改或整体替换
+    private volatile RateLimitRule rule;
+    // 当前生效的规则配置，只在refreshRules中修改，指标快照与拒绝汇总会读取
+    private volatile RuleConfig liveConfig;
+    private final RateLimitAlgFactory algFactory;
+    private final RuleConfigSource configSource;
+    private final RuleConfigListener ruleConfigListener = this::refreshRules;
+    // acquireAsync的重试由共享时间轮定时触发，重试本身交给线程池执行，避免访问Redis时阻塞时间轮
+    private final Timer timer = HashedWheelTimer.getDefault();
+    private final Executor asyncExecutor;
+    // 默认创建的重试线程池由本实例持有，close()时关闭；外部传入的线程池由调用方管理，为null
+    private final ExecutorService ownedAsyncExecutor;
+    // 获取成功时返回的Future已被取消，已占用而无人使用的许可数
+    private final LongAdder abandonedPermits = new LongAdder();
+    private final LimiterMetrics metrics = new LimiterMetrics();
+    private final RejectionLogger rejectionLogger = new RejectionLogger(() -> liveConfig.getLimits(), metrics);
 
     public RateLimiter() {
         //调用RuleConfigSource类来实现配置加载
-        RuleConfigSource configSource = new FileRuleConfigSource();
+        this(new FileRuleConfigSource());
+    }
+
+    public RateLimiter(RuleConfigSource configSource) {
+        this(configSource, new RateLimitAlgFactory());
+    }
+
+    /**
+     * @param configSource 规则配置数据源
+     * @param algFactory 限流算法工厂，使用分布式规则时需传入带Redis客户端的工厂
+     */
+    public RateLimiter(RuleConfigSource configSource, RateLimitAlgFactory algFactory) {
+        this(configSource, algFactory, new CounterStore());
+    }
+
+    /**
+     * @param configSource 规则配置数据源
+     * @param algFactory 限流算法工厂，使用分布式规则时需传入带Redis客户端的工厂
+     * @param counterStore 限流计数器存储，可指定容量上限与空闲检查间隔
+     */
+    public RateLimiter(RuleConfigSource configSource, RateLimitAlgFactory algFactory, CounterStore counterStore) {
+        this(configSource, algFactory, counterStore, null);
+    }
+
+    /**
+     * @param configSource 规则配置数据源
+     * @param algFactory 限流算法工厂，使用分布式规则时需传入带Redis客户端的工厂
+     * @param counterStore 限流计数器存储，可指定容量上限与空闲检查间隔
+     * @param asyncExecutor 执行acquireAsync重试的线程池，由调用方管理其生命周期；
+     *                      为null时创建一个有界的专用线程池，随close()关闭。重试可能阻塞在Redis上，不宜传入公共ForkJoinPool
+     */
+    public RateLimiter(RuleConfigSource configSource, RateLimitAlgFactory algFactory, CounterStore counterStore,
+                       Executor asyncExecutor) {
+        if (asyncExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(ASYNC_QUEUE_CAPACITY),
+                    new ThreadFactoryBuilder().setNameFormat("ratelimiter-async-%d").setDaemon(true).build());
+            executor.allowCoreThreadTimeOut(true);
+            this.asyncExecutor = executor;
+            this.ownedAsyncExecutor = executor;
+        } else {
+            this.asyncExecutor = asyncExecutor;
+            this.ownedAsyncExecutor = null;
+        }
+        this.algFactory = algFactory;
+        this.configSource = configSource;
+        this.counters = counterStore;
         RuleConfig ruleConfig = configSource.load();
-        log.info("Loaded rate limit rules: {}", ruleConfig);
-        this.rule = new TrieRateLimitRule(ruleConfig);
+        log.info("Loaded rate limit rules: {}", ruleConfig == null ? null : ruleConfig.getLimits());
+        RuleConfigDiff diff = RuleConfigDiff.between(null, ruleConfig);
+        validate(diff);
+        this.liveConfig = diff.toRuleConfig();
+        this.rule = new TrieRateLimitRule(liveConfig);
+        configSource.addListener(ruleConfigListener);
+    }
+
+    /**
+     * 用新的规则配置更新当前规则
+     * 新配置先与当前生效的配置做差异比较，只对新增、删除、修改的规则调用addLimit/removeLimit，
+     * 只重建变化规则的计数器，未变化的规则连同计数器原样保留。
+     * 变更的规则超过当前规则数的一半时，逐条修改不再划算，改为构建新的规则索引后整体替换。
+     * @param ruleConfig 新的完整规则配置
+     * @throws IllegalArgumentException 新增或修改的规则非法，此时整份配置被拒绝，当前规则保持不变
+     */
+    public synchronized void refreshRules(RuleConfig ruleConfig) {
+        long start = System.nanoTime();
+        RuleConfigDiff diff = RuleConfigDiff.between(liveConfig, ruleConfig);
+        if (diff.isEmpty()) {
+            log.info("Rate limit rules unchanged, took {}us", (System.nanoTime() - start) / 1000);
+            return;
+        }
+        validate(diff);
+        RuleConfig newLiveConfig = diff.toRuleConfig();
+        boolean rebuild = diff.size() > liveConfig.getLimits().size() / 2;
+        if (rebuild) {
+            // 未变化的规则沿用旧ApiLimit对象，已绑定的计数器随之进入新索引
+            this.rule = new TrieRateLimitRule(newLiveConfig);
+        } else {
+            diff.applyTo(rule);
+        }
+        for (ApiLimit apiLimit : diff.getRemoved()) {
+            counters.remove(apiLimit);
+        }
+        for (ApiLimit apiLimit : diff.getModifiedFrom()) {
+            counters.remove(apiLimit);
+        }
+        this.liveConfig = newLiveConfig;
+        log.info("Refreshed rate limit rules ({}): {} rules, {}, took {}us",
+                diff, newLiveConfig.getLimits().size(), rebuild ? "rebuilt index" : "applied incrementally",
+                (System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * 校验新增与修改的规则，未变化的规则在加载时已经校验过
+     */
+    private void validate(RuleConfigDiff diff) {
+        for (ApiLimit apiLimit : diff.getAdded()) {
+            algFactory.validate(apiLimit);
+        }
+        for (ApiLimit apiLimit : diff.getModifiedTo()) {
+            algFactory.validate(apiLimit);
+        }
     }
 
     public boolean limit(String appId, String url) {
+        return limit(appId, url, (String) null);
+    }
+
+    /**
+     * 按维度值限流，例如规则配置了USER维度时传入用户ID，每个用户各自拥有一份限额
+     * @param appId 应用ID
+     * @param url 请求路径
+     * @param limitKey 维度值；命中的规则未配置维度时忽略，为null时所有未提供维度值的请求共享一份限额
+     * @return 是否放行
+     */
+    public boolean limit(String appId, String url, String limitKey) {
+        long startNanos = System.nanoTime();
         ApiLimit apiLimit = rule.getLimit(appId, url);
         if (apiLimit == null) {
-            log.warn("No rate limit rule found for appId: {}, url: {}", appId, url);
+            onUnmatched(appId, url);
+            metrics.recordLatency(startNanos);
             return true;
         }
+        boolean acquired = limit(appId, url, apiLimit, limitKey, 1);
+        metrics.recordLatency(startNanos);
+        return acquired;
+    }
 
-        // 获取api对应在内存中的限流计数器（rateLimitCounter）
-        String counterKey = appId + ":" + apiLimit.getApi();
-        RateLimitAlg rateLimitCounter = counters.get(counterKey);
-        if (rateLimitCounter == null) {
-            log.info("Creating new rate limiter for appId: {}, url: {}, limit: {}, unit: {}s", 
-                    appId, url, apiLimit.getLimit(), apiLimit.getUnit());
-            RateLimitAlg newRateLimitCounter = new FixedTimeWinRateLimitAlg(
-                    apiLimit.getLimit(), apiLimit.getUnit() * 1000);
-            rateLimitCounter = counters.putIfAbsent(counterKey, newRateLimitCounter);
-            if (rateLimitCounter == null) {
-                rateLimitCounter = newRateLimitCounter;
+    /**
+     * 按维度值限流，维度值由extractor从请求中提取，只有命中的规则配置了维度时才会提取
+     * @param appId 应用ID
+     * @param url 请求路径
+     * @param request 请求对象
+     * @param extractor 维度值提取器
+     * @return 是否放行
+     */
+    public <T> boolean limit(String appId, String url, T request, LimitKeyExtractor<T> extractor) {
+        long startNanos = System.nanoTime();
+        ApiLimit apiLimit = rule.getLimit(appId, url);
+        if (apiLimit == null) {
+            onUnmatched(appId, url);
+            metrics.recordLatency(startNanos);
+            return true;
+        }
+        String limitKey = apiLimit.isDimensional() ? extractor.extract(request, apiLimit.getDimension()) : null;
+        boolean acquired = limit(appId, url, apiLimit, limitKey, 1);
+        metrics.recordLatency(startNanos);
+        return acquired;
+    }
+
+    /**
+     * 获取一个许可，获取不到时等待，直到获取成功或超时
+     * @see #acquire(String, String, String, int, long, TimeUnit)
+     */
+    public boolean acquire(String appId, String url, long timeout, TimeUnit unit) throws InterruptedException {
+        return acquire(appId, url, null, 1, timeout, unit);
+    }
+
+    /**
+     * 获取许可，获取不到时挂起当前线程，直到获取成功或超时
+     * 每次被拒绝后按计数器给出的下次可用时间挂起（LockSupport.parkNanos），醒来再重试，不忙等，
+     * 在虚拟线程中调用时只挂起虚拟线程而不占用载体线程。
+     * 计数器给出的下次可用时间已经超出等待期限时立即返回false，不做无谓的等待。
+     * @param appId 应用ID
+     * @param url 请求路径
+     * @param limitKey 维度值；命中的规则未配置维度时忽略
+     * @param permits 许可数
+     * @param timeout 最长等待时间
+     * @param unit 时间单位
+     * @return 是否在超时前获取成功；未命中规则时直接返回true
+     * @throws InterruptedException 等待期间线程被中断
+     */
+    public boolean acquire(String appId, String url, String limitKey, int permits, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive");
+        }
+        ApiLimit apiLimit = rule.getLimit(appId, url);
+        if (apiLimit == null) {
+            onUnmatched(appId, url);
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
             }
+            long startNanos = System.nanoTime();
+            RateLimitAlg rateLimitCounter = counterOf(appId, url, apiLimit);
+            boolean acquired = tryAcquire(rateLimitCounter, limitKey, permits);
+            metrics.recordLatency(startNanos);
+            if (acquired) {
+                metrics.recordDecision(apiLimit, true);
+                return true;
+            }
+            long waitNanos = waitNanos(rateLimitCounter, limitKey);
+            if (deadline - System.nanoTime() - waitNanos < 0) {
+                onRejected(appId, url, apiLimit, limitKey, permits, rateLimitCounter);
+                return false;
+            }
+            LockSupport.parkNanos(this, waitNanos);
         }
+    }
+
+    /**
+     * 异步获取一个许可
+     * @see #acquireAsync(String, String, String, int, long, TimeUnit)
+     */
+    public CompletableFuture<Boolean> acquireAsync(String appId, String url, long timeout, TimeUnit unit) {
+        return acquireAsync(appId, url, null, 1, timeout, unit);
+    }
+
+    /**
+     * 异步获取许可，返回的Future在获取成功时以true完成，超时时以false完成
+     * 等待期间不占用线程：被拒绝后按计数器给出的下次可用时间在共享时间轮上登记一次重试，
+     * 到期后在线程池中重试，所有等待者共用同一个时间轮线程。
+     * 取消返回的Future后不再重试，但取消不会归还许可：与正在进行的一次重试并发取消时，
+     * 这次重试占用的许可既不返还也不交给调用方，计入getAbandonedPermits()。
+     * 获取许可时发生的异常使Future异常完成；重试线程池已满或已随close()关闭时，Future以RejectedExecutionException异常完成。
+     * @param appId 应用ID
+     * @param url 请求路径
+     * @param limitKey 维度值；命中的规则未配置维度时忽略
+     * @param permits 许可数
+     * @param timeout 最长等待时间
+     * @param unit 时间单位
+     * @return 是否在超时前获取成功；未命中规则时直接以true完成
+     */
+    public CompletableFuture<Boolean> acquireAsync(String appId, String url, String limitKey, int permits,
+                                                   long timeout, TimeUnit unit) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive");
+        }
+        ApiLimit apiLimit = rule.getLimit(appId, url);
+        if (apiLimit == null) {
+            onUnmatched(appId, url);
+            return CompletableFuture.completedFuture(true);
+        }
+        AsyncAcquisition acquisition = new AsyncAcquisition(appId, url, apiLimit, limitKey, permits,
+                System.nanoTime() + unit.toNanos(timeout));
+        acquisition.attempt();
+        return acquisition.future;
+    }
+
+    /**
+     * 批量限流检查，每项可一次占用多个许可，例如网关按批转发消息时一批检查一次
+     * 各项按顺序独立判定，一项被拒绝不影响其他项；分布式规则的检查合并为Redis pipeline，整批只需一次往返。
+     * @param requests 限流检查项
+     * @return 每项是否放行，与requests按下标一一对应
+     */
+    public boolean[] limitBatch(List<LimitRequest> requests) {
+        boolean[] results = new boolean[requests.size()];
+        List<RedisRateLimitAlg> redisCounters = new ArrayList<>();
+        List<ApiLimit> redisLimits = new ArrayList<>();
+        List<Integer> redisIndexes = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            LimitRequest request = requests.get(i);
+            ApiLimit apiLimit = rule.getLimit(request.getAppId(), request.getUrl());
+            if (apiLimit == null) {
+                onUnmatched(request.getAppId(), request.getUrl());
+                results[i] = true;
+                continue;
+            }
+            RateLimitAlg rateLimitCounter = counterOf(request.getAppId(), request.getUrl(), apiLimit);
+            if (rateLimitCounter instanceof RedisRateLimitAlg) {
+                // 分布式检查先收集起来，最后合并为pipeline
+                redisCounters.add((RedisRateLimitAlg) rateLimitCounter);
+                redisLimits.add(apiLimit);
+                redisIndexes.add(i);
+            } else {
+                long startNanos = System.nanoTime();
+                results[i] = limit(request.getAppId(), request.getUrl(), apiLimit, request.getLimitKey(), request.getPermits());
+                metrics.recordLatency(startNanos);
+            }
+        }
+        if (!redisCounters.isEmpty()) {
+            int[] permits = new int[redisIndexes.size()];
+            for (int i = 0; i < permits.length; i++) {
+                permits[i] = requests.get(redisIndexes.get(i)).getPermits();
+            }
+            long startNanos = System.nanoTime();
+            boolean[] redisResults = RedisRateLimitAlg.tryAcquireAll(redisCounters, permits);
+            for (int i = 0; i < redisResults.length; i++) {
+                // 合并执行的每一项都等待了整个pipeline，按整批的耗时记录
+                metrics.recordLatency(startNanos);
+                int index = redisIndexes.get(i);
+                results[index] = redisResults[i];
+                if (redisResults[i]) {
+                    metrics.recordDecision(redisLimits.get(i), true);
+                } else {
+                    LimitRequest request = requests.get(index);
+                    onRejected(request.getAppId(), request.getUrl(), redisLimits.get(i),
+                            request.getLimitKey(), request.getPermits(), redisCounters.get(i));
+                }
+            }
+        }
+        return results;
+    }
+
+    private boolean limit(String appId, String url, ApiLimit apiLimit, String limitKey, int permits) {
+        RateLimitAlg rateLimitCounter = counterOf(appId, url, apiLimit);
 
         // 判断是否限流
-        boolean acquired = rateLimitCounter.tryAcquire();
-        if (!acquired) {
-            log.warn("Rate limit exceeded for appId: {}, url: {}, current count: {}", 
-                    appId, url, rateLimitCounter.getCurrentCount());
+        boolean acquired = tryAcquire(rateLimitCounter, limitKey, permits);
+        if (acquired) {
+            metrics.recordDecision(apiLimit, true);
         } else {
-            log.debug("Request accepted for appId: {}, url: {}, current count: {}", 
-                    appId, url, rateLimitCounter.getCurrentCount());
+            onRejected(appId, url, apiLimit, limitKey, permits, rateLimitCounter);
         }
         return acquired;
     }
+
+    private void onRejected(String appId, String url, ApiLimit apiLimit, String limitKey, int permits,
+                            RateLimitAlg rateLimitCounter) {
+        metrics.recordDecision(apiLimit, false);
+        rejectionLogger.recordRejection(appId, url, apiLimit, limitKey, permits, rateLimitCounter);
+    }
+
+    private void onUnmatched(String appId, String url) {
+        metrics.recordUnmatched();
+        rejectionLogger.recordUnmatched(appId, url);
+    }
+
+    private boolean tryAcquire(RateLimitAlg rateLimitCounter, String limitKey, int permits) {
+        if (rateLimitCounter instanceof KeyedRateLimitAlg) {
+            return ((KeyedRateLimitAlg) rateLimitCounter).tryAcquire(limitKey == null ? "" : limitKey, permits);
+        }
+        return permits == 1 ? rateLimitCounter.tryAcquire() : rateLimitCounter.tryAcquire(permits);
+    }
+
+    /**
+     * 被拒绝后到下次重试的等待时间，取计数器给出的下次可用时间，计数器无法给出时按最小间隔重试
+     */
+    private long waitNanos(RateLimitAlg rateLimitCounter, String limitKey) {
+        long waitMs = rateLimitCounter instanceof KeyedRateLimitAlg
+                ? ((KeyedRateLimitAlg) rateLimitCounter).getTimeToNextWindow(limitKey == null ? "" : limitKey)
+                : rateLimitCounter.getTimeToNextWindow();
+        return Math.max(MIN_WAIT_NANOS, TimeUnit.MILLISECONDS.toNanos(waitMs));
+    }
+
+    /**
+     * 一次异步获取许可的过程，每次重试都重新读取规则上绑定的计数器，计数器被淘汰重建后仍然有效
+     */
+    private final class AsyncAcquisition implements Runnable {
+        private final String appId;
+        private final String url;
+        private final ApiLimit apiLimit;
+        private final String limitKey;
+        private final int permits;
+        private final long deadline;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        AsyncAcquisition(String appId, String url, ApiLimit apiLimit, String limitKey, int permits, long deadline) {
+            this.appId = appId;
+            this.url = url;
+            this.apiLimit = apiLimit;
+            this.limitKey = limitKey;
+            this.permits = permits;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 时间轮到期回调，只把重试转交给线程池
+         */
+        @Override
+        public void run() {
+            try {
+                asyncExecutor.execute(this::attempt);
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        void attempt() {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                long startNanos = System.nanoTime();
+                RateLimitAlg rateLimitCounter = counterOf(appId, url, apiLimit);
+                boolean acquired = tryAcquire(rateLimitCounter, limitKey, permits);
+                metrics.recordLatency(startNanos);
+                if (acquired) {
+                    metrics.recordDecision(apiLimit, true);
+                    if (!future.complete(true)) {
+                        // 检查isDone()之后被调用方取消，许可已占用但无法交出，计数器不支持归还
+                        abandonedPermits.add(permits);
+                        log.debug("Acquired {} permit(s) for appId: {}, url: {} after the caller cancelled, permits are not returned",
+                                permits, appId, url);
+                    }
+                    return;
+                }
+                long waitNanos = waitNanos(rateLimitCounter, limitKey);
+                if (deadline - System.nanoTime() - waitNanos < 0) {
+                    onRejected(appId, url, apiLimit, limitKey, permits, rateLimitCounter);
+                    future.complete(false);
+                    return;
+                }
+                timer.newTimeout(this, waitNanos, TimeUnit.NANOSECONDS);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * 规则上已预绑定计数器时直接使用，热路径上不拼接key、不查Map
+     */
+    private RateLimitAlg counterOf(String appId, String url, ApiLimit apiLimit) {
+        RateLimitAlg rateLimitCounter = apiLimit.counter();
+        if (rateLimitCounter == null) {
+            rateLimitCounter = bindCounter(appId, url, apiLimit);
+        }
+        return rateLimitCounter;
+    }
+
+    /**
+     * 获取api对应在内存中的限流计数器（rateLimitCounter），并绑定到规则上，每条规则只会走一次
+     */
+    private RateLimitAlg bindCounter(String appId, String url, ApiLimit apiLimit) {
+        RateLimitAlg rateLimitCounter = counters.getOrCreate(apiLimit, limit -> {
+            log.info("Creating new rate limiter for appId: {}, url: {}, algorithm: {}, limit: {}, unit: {}s",
+                    appId, url, limit.getAlgorithm(), limit.getLimit(), limit.getUnit());
+            return algFactory.create(limit);
+        });
+        return apiLimit.bindCounter(rateLimitCounter);
+    }
+
+    /**
+     * @return 限流计数器存储的统计信息，包括计数器数量与淘汰次数
+     */
+    public CounterStore.Stats getCounterStats() {
+        return counters.stats();
+    }
+
+    /**
+     * 获取指标快照：各规则的放行/拒绝次数与利用率、未命中规则的请求数、判定耗时分布、计数器数量
+     * 可配合PrometheusExporter以Prometheus文本格式暴露
+     * @return 指标快照
+     */
+    public MetricsSnapshot getMetrics() {
+        return metrics.snapshot(liveConfig.getLimits(), counters.stats(), algFactory.getKeyedCounterTable());
+    }
+
+    /**
+     * @return acquireAsync获取成功时返回的Future已被取消、因而占用后无人使用的许可总数
+     */
+    public long getAbandonedPermits() {
+        return abandonedPermits.sum();
+    }
+
+    /**
+     * 设置被拒绝请求明细日志的采样比例，默认为0即只输出周期汇总
+     * @param sampleRate 取值[0, 1]，1表示每个被拒绝的请求都输出明细
+     */
+    public void setRejectionLogSampleRate(double sampleRate) {
+        rejectionLogger.setSampleRate(sampleRate);
+    }
+
+    /**
+     * 停止接收规则更新、停止空闲计数器的过期检查，并输出最后一次拒绝汇总
+     * 自行创建的异步重试线程池随之关闭，尚在等待重试的acquireAsync以RejectedExecutionException异常完成。
+     */
+    @Override
+    public void close() {
+        configSource.removeListener(ruleConfigListener);
+        if (ownedAsyncExecutor != null) {
+            ownedAsyncExecutor.shutdown();
+        }
+        counters.close();
+        rejectionLogger.close();
+    }
 }
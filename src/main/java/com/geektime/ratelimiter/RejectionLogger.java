@@ -0,0 +1,243 @@
+package com.geektime.ratelimiter;
+
+import com.geektime.ratelimiter.alg.KeyedRateLimitAlg;
+import com.geektime.ratelimiter.alg.RateLimitAlg;
+import com.geektime.ratelimiter.metrics.LimiterMetrics;
+import com.geektime.ratelimiter.metrics.RuleMetrics;
+import com.geektime.ratelimiter.rule.ApiLimit;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * @Description: 限流拒绝日志的汇总输出
+ * 遭遇攻击时每个被拒绝的请求都打一行WARN，日志本身会成为瓶颈。本类不在请求热路径上格式化字符串，
+ * 拒绝次数直接取自预绑定在规则上的RuleMetrics；每个汇总周期（默认10秒）遍历当前生效的规则，输出一次
+ * 各规则在本周期内新增的拒绝次数，如 "Rate limit rejected 48,213 requests for appId: app1, api: /api/v1/user in last 10s"，
+ * 拒绝次数最多的前20条规则各输出一行，其余合并为一行。未命中任何规则的请求同样只计数、汇总输出。
+ *
+ * 逐个请求的明细日志由采样开关控制，默认关闭；排查问题时可通过setSampleRate()临时打开，
+ * 按比例随机输出被拒绝请求的明细（含当前计数）。
+ * 规则被修改或删除时，旧规则在最后一个周期内的拒绝次数不再输出。
+ * 汇总在独立的后台线程上执行，不占用驱动计数器过期与acquireAsync重试的共享时间轮；
+ * 定时任务只弱引用本对象，未调用close()的RejectionLogger（连同其限流器）仍可被回收，回收后任务自动取消。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:07
+ **/
+public class RejectionLogger implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RejectionLogger.class);
+    public static final long DEFAULT_SUMMARY_INTERVAL_MS = 10_000;
+    private static final int MAX_SUMMARY_LINES = 20;
+
+    private final Supplier<? extends Collection<ApiLimit>> rules;
+    private final LimiterMetrics metrics;
+    private final ScheduledFuture<?> summaryTask;
+    private volatile double sampleRate;
+    private volatile boolean closed;
+    // 以下字段只在summarize中读写：上次汇总的时刻，以及上次汇总时各规则的累计拒绝次数
+    private long lastSummaryNanos = System.nanoTime();
+    private Map<RuleMetrics, Long> lastRejections = new IdentityHashMap<>();
+    private long lastUnmatched;
+
+    /**
+     * @param rules 当前生效的规则
+     * @param metrics 限流器的指标，拒绝次数取自其中
+     */
+    public RejectionLogger(Supplier<? extends Collection<ApiLimit>> rules, LimiterMetrics metrics) {
+        this(rules, metrics, DEFAULT_SUMMARY_INTERVAL_MS);
+    }
+
+    /**
+     * @param rules 当前生效的规则
+     * @param metrics 限流器的指标，拒绝次数取自其中
+     * @param summaryIntervalMs 汇总输出间隔（毫秒）
+     */
+    public RejectionLogger(Supplier<? extends Collection<ApiLimit>> rules, LimiterMetrics metrics,
+                           long summaryIntervalMs) {
+        if (summaryIntervalMs <= 0) {
+            throw new IllegalArgumentException("Summary interval must be positive");
+        }
+        this.rules = rules;
+        this.metrics = metrics;
+        SummaryTask task = new SummaryTask(this);
+        this.summaryTask = SummaryExecutorHolder.EXECUTOR.scheduleWithFixedDelay(task,
+                summaryIntervalMs, summaryIntervalMs, TimeUnit.MILLISECONDS);
+        task.future = summaryTask;
+    }
+
+    /**
+     * 设置逐个请求明细日志的采样比例
+     * @param sampleRate 取值[0, 1]，0表示关闭（默认），1表示每个请求都输出
+     */
+    public void setSampleRate(double sampleRate) {
+        if (!(sampleRate >= 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException("Sample rate must be in [0, 1]");
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * 被拒绝的请求按采样比例输出明细，拒绝次数本身由LimiterMetrics统计
+     * @param appId 应用ID
+     * @param url 请求路径
+     * @param apiLimit 命中的规则
+     * @param limitKey 维度值，规则未配置维度时为null
+     * @param permits 请求的许可数
+     * @param rateLimitCounter 规则对应的计数器，只在采样输出明细时读取当前计数
+     */
+    public void recordRejection(String appId, String url, ApiLimit apiLimit, String limitKey, int permits,
+                                RateLimitAlg rateLimitCounter) {
+        if (sampled()) {
+            if (rateLimitCounter instanceof KeyedRateLimitAlg) {
+                String key = limitKey == null ? "" : limitKey;
+                log.warn("Rate limit exceeded for appId: {}, url: {}, {}: {}, permits: {}, current count: {}",
+                        appId, url, apiLimit.getDimension(), key, permits,
+                        ((KeyedRateLimitAlg) rateLimitCounter).getCurrentCount(key));
+            } else {
+                log.warn("Rate limit exceeded for appId: {}, url: {}, permits: {}, current count: {}",
+                        appId, url, permits, rateLimitCounter.getCurrentCount());
+            }
+        }
+    }
+
+    /**
+     * 未命中任何规则的请求按采样比例输出明细
+     */
+    public void recordUnmatched(String appId, String url) {
+        if (sampled()) {
+            log.warn("No rate limit rule found for appId: {}, url: {}", appId, url);
+        }
+    }
+
+    /**
+     * 输出一次汇总日志并清零计数，通常由定时任务调用
+     */
+    public synchronized void summarize() {
+        List<ApiLimit> rejectedLimits = new ArrayList<>();
+        List<Long> rejectedCounts = new ArrayList<>();
+        Map<RuleMetrics, Long> currentRejections = new IdentityHashMap<>();
+        for (ApiLimit apiLimit : rules.get()) {
+            RuleMetrics ruleMetrics = apiLimit.metrics();
+            if (ruleMetrics == null) {
+                continue;
+            }
+            long total = ruleMetrics.getRejectedCount();
+            currentRejections.put(ruleMetrics, total);
+            long count = total - lastRejections.getOrDefault(ruleMetrics, 0L);
+            if (count > 0) {
+                rejectedLimits.add(apiLimit);
+                rejectedCounts.add(count);
+            }
+        }
+        // 只保留当前生效规则的累计值，已删除规则的指标随之释放
+        lastRejections = currentRejections;
+
+        long now = System.nanoTime();
+        long intervalSeconds = Math.max(1, Math.round((now - lastSummaryNanos) / 1e9));
+        lastSummaryNanos = now;
+        Integer[] order = new Integer[rejectedLimits.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(rejectedCounts.get(b), rejectedCounts.get(a)));
+        long otherRequests = 0;
+        for (int i = 0; i < order.length; i++) {
+            long count = rejectedCounts.get(order[i]);
+            if (i >= MAX_SUMMARY_LINES) {
+                otherRequests += count;
+                continue;
+            }
+            ApiLimit apiLimit = rejectedLimits.get(order[i]);
+            log.warn("Rate limit rejected {} requests for appId: {}, api: {} in last {}s",
+                    String.format("%,d", count), apiLimit.getAppId(), apiLimit.getApi(), intervalSeconds);
+        }
+        if (otherRequests > 0) {
+            log.warn("Rate limit rejected {} requests for {} other apis in last {}s",
+                    String.format("%,d", otherRequests), order.length - MAX_SUMMARY_LINES, intervalSeconds);
+        }
+        long unmatchedTotal = metrics.getUnmatchedCount();
+        long unmatchedCount = unmatchedTotal - lastUnmatched;
+        lastUnmatched = unmatchedTotal;
+        if (unmatchedCount > 0) {
+            log.warn("{} requests matched no rate limit rule in last {}s",
+                    String.format("%,d", unmatchedCount), intervalSeconds);
+        }
+    }
+
+    /**
+     * 停止定时汇总，并输出最后一次汇总
+     */
+    @Override
+    public void close() {
+        closed = true;
+        summaryTask.cancel(false);
+        summarize();
+    }
+
+    private boolean sampled() {
+        double rate = sampleRate;
+        return rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    /**
+     * 定时汇总任务，只弱引用RejectionLogger，RejectionLogger被回收或关闭后取消自身
+     */
+    private static final class SummaryTask implements Runnable {
+        private final WeakReference<RejectionLogger> loggerRef;
+        private volatile ScheduledFuture<?> future;
+
+        SummaryTask(RejectionLogger logger) {
+            this.loggerRef = new WeakReference<>(logger);
+        }
+
+        @Override
+        public void run() {
+            RejectionLogger logger = loggerRef.get();
+            if (logger == null || logger.closed) {
+                ScheduledFuture<?> current = future;
+                if (current != null) {
+                    current.cancel(false);
+                }
+                return;
+            }
+            try {
+                logger.summarize();
+            } catch (RuntimeException e) {
+                log.error("Failed to summarize rate limit rejections", e);
+            }
+        }
+    }
+
+    /**
+     * 所有RejectionLogger共用的汇总线程，首次创建RejectionLogger时才启动
+     */
+    private static final class SummaryExecutorHolder {
+        static final ScheduledExecutorService EXECUTOR = newSummaryExecutor();
+
+        private static ScheduledExecutorService newSummaryExecutor() {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                    new ThreadFactoryBuilder().setNameFormat("ratelimiter-rejection-summary-%d").setDaemon(true).build());
+            // 取消的任务立即从队列中移除，不再引用SummaryTask
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
+}
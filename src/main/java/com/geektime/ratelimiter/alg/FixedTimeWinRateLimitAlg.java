@@ -1,31 +1,29 @@
 package com.geektime.ratelimiter.alg;
 
-import com.geektime.ratelimiter.exception.InternalErrorException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @Description: 固定时间窗口限流算法实现
+ * 窗口序号（高32位）与窗口内计数（低32位）压缩在同一个AtomicLong中，
+ * 计数和窗口切换都由一次CAS完成：不加锁、不阻塞、不抛异常，也不会丢失窗口切换瞬间的计数。
+ * 时间窗口从限流器创建时刻起按windowSizeInMs对齐划分。
  * @Author: dansheng
  * @CreateTime: 2025/2/6 17:06
  **/
 public class FixedTimeWinRateLimitAlg implements RateLimitAlg {
     private static final Logger log = LoggerFactory.getLogger(FixedTimeWinRateLimitAlg.class);
-    private static final long TRY_LOCK_TIMEOUT = 200L;  // 200ms.
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
     private final Stopwatch stopwatch;
-    private final AtomicInteger currentCount = new AtomicInteger(0);
-    private final AtomicLong lastResetTime;
+    // 高32位：窗口序号，低32位：窗口内已放行的请求数
+    private final AtomicLong state = new AtomicLong(0);
     private final int limit;
     private final long windowSizeInMs;
-    private final Lock lock = new ReentrantLock();
 
     /**
      * @param limit 时间窗口内最大请求数
@@ -47,71 +45,64 @@ public class FixedTimeWinRateLimitAlg implements RateLimitAlg {
         this.limit = limit;
         this.windowSizeInMs = windowSizeInMs;
         this.stopwatch = stopwatch;
-        this.lastResetTime = new AtomicLong(stopwatch.elapsed(TimeUnit.MILLISECONDS));
         log.info("Created FixedTimeWinRateLimitAlg with limit: {}, window size: {}ms", limit, windowSizeInMs);
     }
 
     @Override
-    public boolean tryAcquire() throws InternalErrorException {
-        long currentTime = stopwatch.elapsed(TimeUnit.MILLISECONDS);
-        long lastReset = lastResetTime.get();
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
 
-        // 检查是否需要重置计数器
-        if (currentTime - lastReset > windowSizeInMs) {
-            try {
-                if (lock.tryLock(TRY_LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
-                    try {
-                        // 双重检查，防止并发重置
-                        lastReset = lastResetTime.get();
-                        if (currentTime - lastReset > windowSizeInMs) {
-                            // 处理时钟回拨
-                            if (currentTime < lastReset) {
-                                log.error("Clock moved backwards, currentTime: {}, lastReset: {}", currentTime, lastReset);
-                                throw new InternalErrorException("Clock moved backwards");
-                            }
-                            log.debug("Resetting counter, old count: {}", currentCount.get());
-                            currentCount.set(0);
-                            lastResetTime.set(currentTime);
-                        }
-                    } finally {
-                        lock.unlock();
-                    }
-                } else {
-                    log.warn("Failed to acquire lock within {}ms", TRY_LOCK_TIMEOUT);
-                    throw new InternalErrorException("tryAcquire() wait lock too long:" + TRY_LOCK_TIMEOUT + "ms");
-                }
-            } catch (InterruptedException e) {
-                log.error("Lock acquisition interrupted", e);
-                throw new InternalErrorException("tryAcquire() is interrupted by lock-time-out.", e);
-            }
+    @Override
+    public boolean tryAcquire(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive");
         }
-
-        // 尝试增加计数
-        int updatedCount = currentCount.incrementAndGet();
-        if (updatedCount <= limit) {
-            log.debug("Request accepted, current count: {}/{}", updatedCount, limit);
-            return true;
+        int window = currentWindow();
+        while (true) {
+            long current = state.get();
+            int stateWindow = windowOf(current);
+            // 其他线程已经切到了更新的窗口（读时间与CAS之间存在先后），按该窗口计数
+            int targetWindow = window - stateWindow < 0 ? stateWindow : window;
+            int count = targetWindow == stateWindow ? countOf(current) : 0;
+            if (count > limit - permits) {
+                return false;
+            }
+            // 窗口切换与计数在同一次CAS中完成
+            if (state.compareAndSet(current, pack(targetWindow, count + permits))) {
+                return true;
+            }
         }
-
-        // 超过限制，将计数减回去
-        currentCount.decrementAndGet();
-        log.debug("Request rejected, current count: {}/{}", currentCount.get(), limit);
-        return false;
     }
 
     @Override
     public int getCurrentCount() {
-        return currentCount.get();
+        long current = state.get();
+        return windowOf(current) == currentWindow() ? countOf(current) : 0;
     }
 
     @Override
     public long getTimeToNextWindow() {
         long currentTime = stopwatch.elapsed(TimeUnit.MILLISECONDS);
-        long lastReset = lastResetTime.get();
-        if (currentTime < lastReset) {
-            log.warn("Clock moved backwards, returning 0 for time to next window");
-            return 0; // 时钟回拨情况下，立即重置
-        }
-        return Math.max(0, windowSizeInMs - (currentTime - lastReset));
+        return windowSizeInMs - currentTime % windowSizeInMs;
+    }
+
+    /**
+     * 当前窗口序号，按32位回绕，只用于判断是否同一窗口
+     */
+    private int currentWindow() {
+        return (int) (stopwatch.elapsed(TimeUnit.MILLISECONDS) / windowSizeInMs);
+    }
+
+    private static int windowOf(long state) {
+        return (int) (state >>> 32);
+    }
+
+    private static int countOf(long state) {
+        return (int) (state & COUNT_MASK);
+    }
+
+    private static long pack(int window, int count) {
+        return ((long) window << 32) | (count & COUNT_MASK);
     }
-} 
\ No newline at end of file
+}
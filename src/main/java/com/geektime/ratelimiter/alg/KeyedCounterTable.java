@@ -0,0 +1,378 @@
+package com.geektime.ratelimiter.alg;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Description: 按维度（用户、IP、租户等）限流时使用的紧凑计数表
+ * 百万级的限流key不能每个都创建一个计数器对象，本表把每个key的限流状态压缩成一个long，
+ * 以 long -> long 的开放寻址哈希表存放：key为 规则 + 维度值 的64位哈希，value为算法自定义的状态。
+ * 状态的高40位约定为过期时刻（相对本表创建时刻的毫秒数），过期的槽位视为空，写入时直接复用，
+ * 因此不需要逐个删除，也没有单独的清理线程；空槽不足时整段重建，顺带丢弃过期项。
+ *
+ * 表按哈希分为64段，每段一把锁、两个long数组（key与状态），线性探测，首次写入某段时才分配该段。
+ * 内存预算：每个槽位16字节，负载因子0.75，即每个key约21.3字节，另有约1%~3%的分段余量，
+ * 默认容量100万key约22MB，500万key约108MB，与key的字符串长度无关。
+ * 超出容量时按OverflowPolicy处理并计入溢出次数，默认拒绝请求：若放行，轮换随机维度值（用户ID、IP）
+ * 即可填满本表，使所有key的维度限流失效。
+ * 64位哈希在500万key下发生碰撞的概率约为百万分之一，碰撞的两个key会共享同一份计数。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:06
+ **/
+public class KeyedCounterTable {
+    private static final Logger log = LoggerFactory.getLogger(KeyedCounterTable.class);
+    public static final int DEFAULT_MAX_KEYS = 1_000_000;
+    public static final long BYTES_PER_SLOT = 16;
+    private static final double LOAD_FACTOR = 0.75;
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int EXPIRE_SHIFT = 24;
+    private static final long EMPTY_KEY = 0;
+    // StateUpdater返回该值表示拒绝请求
+    public static final long REJECTED = -1;
+    // EVICT策略从key的起始槽位起最多检查的槽位数，保证溢出时的开销有界
+    private static final int EVICTION_CANDIDATES = 16;
+
+    /**
+     * 表中已满、无法写入新key时的处理方式
+     */
+    public enum OverflowPolicy {
+        /**
+         * 拒绝新key的请求，已有key的限流不受影响
+         */
+        REJECT,
+        /**
+         * 淘汰新key探测链前段中最早过期的key，被淘汰的key下次请求时按新key重新计数；
+         * 起始槽位为空且段内余量已用完时，放行新key的请求但不记录状态
+         */
+        EVICT,
+        /**
+         * 放行新key的请求且不记录状态（fail-open），表被填满时维度限流失效
+         */
+        ALLOW
+    }
+
+    /**
+     * 状态更新函数，由具体限流算法实现，在段锁内调用
+     */
+    public interface StateUpdater {
+        /**
+         * @param state 当前状态，key不存在或已过期时为0
+         * @param nowNanos 当前时刻（相对本表创建时刻的纳秒数）
+         * @param permits 本次请求的许可数
+         * @return 新状态，高40位为过期时刻（毫秒）；返回REJECTED表示拒绝本次请求且不修改状态
+         */
+        long update(long state, long nowNanos, int permits);
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int maxKeys;
+    private final OverflowPolicy overflowPolicy;
+    private final Ticker ticker;
+    private final long startNanos;
+    private final LongAdder overflows = new LongAdder();
+
+    public KeyedCounterTable() {
+        this(DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * @param maxKeys 同时存放的最大key数
+     */
+    public KeyedCounterTable(int maxKeys) {
+        this(maxKeys, OverflowPolicy.REJECT);
+    }
+
+    /**
+     * @param maxKeys 同时存放的最大key数
+     * @param overflowPolicy 表满时新key的处理方式
+     */
+    public KeyedCounterTable(int maxKeys, OverflowPolicy overflowPolicy) {
+        this(maxKeys, overflowPolicy, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    protected KeyedCounterTable(int maxKeys, OverflowPolicy overflowPolicy, Ticker ticker) {
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("Max keys must be positive");
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("Overflow policy must not be null");
+        }
+        this.maxKeys = maxKeys;
+        this.overflowPolicy = overflowPolicy;
+        this.ticker = ticker;
+        this.startNanos = ticker.read();
+        // 各段key数服从二项分布，每段额外留出4倍标准差的余量，使整表接近maxKeys时才开始溢出
+        double keysPerSegment = (double) maxKeys / SEGMENTS;
+        int segmentCapacity = (int) Math.ceil((keysPerSegment + 4 * Math.sqrt(keysPerSegment)) / LOAD_FACTOR) + 1;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+        log.info("Created KeyedCounterTable with max keys: {}, memory budget: {}MB, overflow policy: {}",
+                maxKeys, (long) segmentCapacity * SEGMENTS * BYTES_PER_SLOT / 1_000_000, overflowPolicy);
+    }
+
+    /**
+     * 在key对应的状态上执行一次更新
+     * @param keyHash key的64位哈希，见hash()
+     * @param updater 状态更新函数
+     * @param permits 本次请求的许可数
+     * @return 是否放行；表已满无法写入新key时由OverflowPolicy决定
+     */
+    public boolean update(long keyHash, StateUpdater updater, int permits) {
+        long hash = keyHash == EMPTY_KEY ? 1 : keyHash;
+        return segmentFor(hash).update(hash, ticker.read() - startNanos, updater, permits);
+    }
+
+    /**
+     * @param keyHash key的64位哈希
+     * @return key当前的状态，不存在或已过期时返回0
+     */
+    public long get(long keyHash) {
+        long hash = keyHash == EMPTY_KEY ? 1 : keyHash;
+        return segmentFor(hash).get(hash, ticker.read() - startNanos);
+    }
+
+    /**
+     * @return 当前时刻（相对本表创建时刻的纳秒数）
+     */
+    public long nowNanos() {
+        return ticker.read() - startNanos;
+    }
+
+    /**
+     * @return 已占用的槽位数，包含尚未被复用的过期项
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.occupied;
+            }
+        }
+        return size;
+    }
+
+    public int getMaxKeys() {
+        return maxKeys;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return 表已满、无法按常规写入新key的次数，按OverflowPolicy拒绝、淘汰或放行
+     */
+    public long getOverflowCount() {
+        return overflows.sum();
+    }
+
+    /**
+     * 打包状态：高40位为过期时刻（毫秒），低24位由算法自定义
+     */
+    public static long pack(long expireAtMs, long low24) {
+        return (expireAtMs << EXPIRE_SHIFT) | (low24 & ((1L << EXPIRE_SHIFT) - 1));
+    }
+
+    public static long expireAtMsOf(long state) {
+        return state >>> EXPIRE_SHIFT;
+    }
+
+    public static int low24Of(long state) {
+        return (int) (state & ((1L << EXPIRE_SHIFT) - 1));
+    }
+
+    /**
+     * 计算 规则盐值 + 维度值 的64位哈希（FNV-1a后接MurmurHash3的fmix64），不分配对象
+     * @param salt 规则盐值，区分不同规则下相同的维度值
+     * @param key 维度值
+     * @return 64位哈希
+     */
+    public static long hash(long salt, CharSequence key) {
+        long h = 0xcbf29ce484222325L ^ salt;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h ^ key.length());
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+    }
+
+    private static boolean isLive(long state, long nowMs) {
+        return state != 0 && expireAtMsOf(state) > nowMs;
+    }
+
+    private final class Segment {
+        private final int capacity;
+        private final int maxOccupied;
+        private final int maxEvictOccupied;
+        private long[] keys;
+        private long[] states;
+        // 已占用的槽位数，含过期项
+        private int occupied;
+        // 上次整段重建时的毫秒时刻
+        private long compactedAtMs = -1;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.maxOccupied = (int) (capacity * LOAD_FACTOR);
+            this.maxEvictOccupied = maxOccupied + (capacity - maxOccupied) / 2;
+        }
+
+        synchronized boolean update(long hash, long nowNanos, StateUpdater updater, int permits) {
+            if (keys == null) {
+                keys = new long[capacity];
+                states = new long[capacity];
+            }
+            long nowMs = nowNanos / 1_000_000;
+            int index = indexOf(hash);
+            int reusable = -1;
+            for (int probes = 0; probes < capacity; probes++) {
+                long key = keys[index];
+                if (key == EMPTY_KEY) {
+                    break;
+                }
+                if (key == hash) {
+                    long state = states[index];
+                    long next = updater.update(isLive(state, nowMs) ? state : 0, nowNanos, permits);
+                    if (next == REJECTED) {
+                        return false;
+                    }
+                    states[index] = next;
+                    return true;
+                }
+                if (reusable < 0 && !isLive(states[index], nowMs)) {
+                    reusable = index;
+                }
+                index = index + 1 == capacity ? 0 : index + 1;
+            }
+
+            long next = updater.update(0, nowNanos, permits);
+            if (next == REJECTED) {
+                return false;
+            }
+            if (reusable >= 0) {
+                keys[reusable] = hash;
+                states[reusable] = next;
+                return true;
+            }
+            if (occupied >= maxOccupied) {
+                // 过期以毫秒计，同一毫秒内重建不会多出空槽，表满时不必每个新key都重建一次
+                if (nowMs != compactedAtMs) {
+                    compact(nowMs);
+                }
+                if (occupied >= maxOccupied) {
+                    overflows.increment();
+                    return overflow(hash, next);
+                }
+            }
+            insert(hash, next);
+            occupied++;
+            return true;
+        }
+
+        private boolean overflow(long hash, long state) {
+            switch (overflowPolicy) {
+                case EVICT:
+                    // 只在新key的探测链前段挑最早过期的key原地替换，替换后新key仍能从起始槽位探测到，也不扫描整段
+                    int index = indexOf(hash);
+                    int victim = -1;
+                    for (int i = 0; i < EVICTION_CANDIDATES && keys[index] != EMPTY_KEY; i++) {
+                        if (victim < 0 || expireAtMsOf(states[index]) < expireAtMsOf(states[victim])) {
+                            victim = index;
+                        }
+                        index = index + 1 == capacity ? 0 : index + 1;
+                    }
+                    if (victim < 0) {
+                        // 起始槽位为空时没有可原地替换的key，在负载因子与占满之间的余量内直接写入，
+                        // 余量用完后只放行不记录，避免段被占满后每次未命中都探测整段
+                        if (occupied < maxEvictOccupied) {
+                            insert(hash, state);
+                            occupied++;
+                        }
+                        return true;
+                    }
+                    keys[victim] = hash;
+                    states[victim] = state;
+                    return true;
+                case ALLOW:
+                    return true;
+                case REJECT:
+                default:
+                    return false;
+            }
+        }
+
+        synchronized long get(long hash, long nowNanos) {
+            if (keys == null) {
+                return 0;
+            }
+            long nowMs = nowNanos / 1_000_000;
+            int index = indexOf(hash);
+            for (int probes = 0; probes < capacity; probes++) {
+                long key = keys[index];
+                if (key == EMPTY_KEY) {
+                    return 0;
+                }
+                if (key == hash) {
+                    long state = states[index];
+                    return isLive(state, nowMs) ? state : 0;
+                }
+                index = index + 1 == capacity ? 0 : index + 1;
+            }
+            return 0;
+        }
+
+        /**
+         * 丢弃过期项后整段重建，缩短探测链
+         */
+        private void compact(long nowMs) {
+            compactedAtMs = nowMs;
+            long[] oldKeys = keys;
+            long[] oldStates = states;
+            keys = new long[capacity];
+            states = new long[capacity];
+            occupied = 0;
+            for (int i = 0; i < capacity; i++) {
+                if (oldKeys[i] != EMPTY_KEY && isLive(oldStates[i], nowMs)) {
+                    insert(oldKeys[i], oldStates[i]);
+                    occupied++;
+                }
+            }
+        }
+
+        private void insert(long hash, long state) {
+            int index = indexOf(hash);
+            while (keys[index] != EMPTY_KEY) {
+                index = index + 1 == capacity ? 0 : index + 1;
+            }
+            keys[index] = hash;
+            states[index] = state;
+        }
+
+        /**
+         * 段号已用掉哈希的高位，这里用低32位乘法取模映射到槽位，不要求容量为2的幂
+         */
+        private int indexOf(long hash) {
+            return (int) (((hash & 0xFFFFFFFFL) * capacity) >>> 32);
+        }
+    }
+}
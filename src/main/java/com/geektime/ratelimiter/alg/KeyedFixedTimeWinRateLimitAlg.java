@@ -0,0 +1,70 @@
+package com.geektime.ratelimiter.alg;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @Description: 按维度值分别计数的固定时间窗口限流算法
+ * 每个维度值的状态为KeyedCounterTable中的一个long：高40位为当前窗口的结束时刻，低24位为窗口内计数，
+ * 窗口结束后状态自然过期，槽位可被其他维度值复用。时间窗口从计数表创建时刻起按windowSizeInMs对齐。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:06
+ **/
+public class KeyedFixedTimeWinRateLimitAlg implements KeyedRateLimitAlg, KeyedCounterTable.StateUpdater {
+    private static final Logger log = LoggerFactory.getLogger(KeyedFixedTimeWinRateLimitAlg.class);
+    public static final int MAX_LIMIT = (1 << 24) - 1;
+
+    private final KeyedCounterTable table;
+    private final long salt;
+    private final int limit;
+    private final long windowSizeInMs;
+
+    /**
+     * @param table 计数表
+     * @param salt 规则盐值，同一规则必须使用相同的盐值
+     * @param limit 每个维度值在时间窗口内的最大请求数
+     * @param windowSizeInMs 时间窗口大小（毫秒）
+     */
+    public KeyedFixedTimeWinRateLimitAlg(KeyedCounterTable table, long salt, int limit, long windowSizeInMs) {
+        if (limit <= 0 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("Limit must be in [1, " + MAX_LIMIT + "]");
+        }
+        if (windowSizeInMs <= 0) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        this.table = table;
+        this.salt = salt;
+        this.limit = limit;
+        this.windowSizeInMs = windowSizeInMs;
+        log.info("Created KeyedFixedTimeWinRateLimitAlg with limit: {}, window size: {}ms", limit, windowSizeInMs);
+    }
+
+    @Override
+    public boolean tryAcquire(String limitKey, int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive");
+        }
+        return table.update(KeyedCounterTable.hash(salt, limitKey), this, permits);
+    }
+
+    @Override
+    public long update(long state, long nowNanos, int permits) {
+        long windowEnd = (nowNanos / 1_000_000 / windowSizeInMs + 1) * windowSizeInMs;
+        int count = state != 0 && KeyedCounterTable.expireAtMsOf(state) == windowEnd
+                ? KeyedCounterTable.low24Of(state) : 0;
+        if (count > limit - permits) {
+            return KeyedCounterTable.REJECTED;
+        }
+        return KeyedCounterTable.pack(windowEnd, count + permits);
+    }
+
+    @Override
+    public int getCurrentCount(String limitKey) {
+        return KeyedCounterTable.low24Of(table.get(KeyedCounterTable.hash(salt, limitKey)));
+    }
+
+    @Override
+    public long getTimeToNextWindow() {
+        return windowSizeInMs - table.nowNanos() / 1_000_000 % windowSizeInMs;
+    }
+}
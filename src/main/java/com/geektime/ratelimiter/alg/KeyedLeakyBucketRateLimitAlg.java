@@ -0,0 +1,105 @@
+package com.geektime.ratelimiter.alg;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description: 按维度值分别计数的漏桶/令牌桶限流算法（GCRA）
+ * 与LeakyBucketRateLimiter相同，每个维度值只保存一个理论到达时间（TAT），
+ * 编码为KeyedCounterTable中的一个long：高40位为TAT向上取整的毫秒数，低24位为距该毫秒还差的纳秒数。
+ * TAT即桶漏空的时刻，也就是状态的过期时刻，桶空后槽位可被其他维度值复用；
+ * 向上取整使积压不足1毫秒的桶在当前毫秒内仍然有效，漏出间隔小于1毫秒的规则不会因状态提前过期而放行过多请求。
+ * 容量为capacity、每emissionInterval漏出（或补充）一个的漏桶与同参数的令牌桶等价，两种规则共用本实现。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:06
+ **/
+public class KeyedLeakyBucketRateLimitAlg implements KeyedRateLimitAlg, KeyedCounterTable.StateUpdater {
+    private static final Logger log = LoggerFactory.getLogger(KeyedLeakyBucketRateLimitAlg.class);
+    private static final long NANOS_PER_MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final KeyedCounterTable table;
+    private final long salt;
+    private final long emissionIntervalNanos;
+    private final long toleranceNanos;
+
+    /**
+     * @param table 计数表
+     * @param salt 规则盐值，同一规则必须使用相同的盐值
+     * @param capacity 每个维度值的桶容量
+     * @param emissionIntervalNanos 漏出（或补充）一个请求的间隔（纳秒）
+     */
+    public KeyedLeakyBucketRateLimitAlg(KeyedCounterTable table, long salt, long capacity, long emissionIntervalNanos) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        if (emissionIntervalNanos <= 0) {
+            throw new IllegalArgumentException("Emission interval must be positive");
+        }
+        this.table = table;
+        this.salt = salt;
+        this.emissionIntervalNanos = emissionIntervalNanos;
+        this.toleranceNanos = capacity > Long.MAX_VALUE / 4 / emissionIntervalNanos
+                ? Long.MAX_VALUE / 4 : capacity * emissionIntervalNanos;
+        log.info("Created KeyedLeakyBucketRateLimitAlg with capacity: {}, emission interval: {}ns",
+                capacity, emissionIntervalNanos);
+    }
+
+    @Override
+    public boolean tryAcquire(String limitKey, int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive");
+        }
+        return table.update(KeyedCounterTable.hash(salt, limitKey), this, permits);
+    }
+
+    @Override
+    public long update(long state, long nowNanos, int permits) {
+        long tat = state == 0 ? nowNanos : Math.max(tatOf(state), nowNanos);
+        long newTat = tat + (permits > toleranceNanos / emissionIntervalNanos ? toleranceNanos + 1 : permits * emissionIntervalNanos);
+        if (newTat - nowNanos > toleranceNanos) {
+            return KeyedCounterTable.REJECTED;
+        }
+        long expireAtMs = (newTat + NANOS_PER_MS - 1) / NANOS_PER_MS;
+        return KeyedCounterTable.pack(expireAtMs, expireAtMs * NANOS_PER_MS - newTat);
+    }
+
+    /**
+     * 桶中积压的请求数
+     */
+    @Override
+    public int getCurrentCount(String limitKey) {
+        long state = table.get(KeyedCounterTable.hash(salt, limitKey));
+        if (state == 0) {
+            return 0;
+        }
+        long backlog = tatOf(state) - table.nowNanos();
+        return backlog <= 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, (backlog + emissionIntervalNanos - 1) / emissionIntervalNanos);
+    }
+
+    /**
+     * 未提供维度值的请求所在桶中腾出一个空位的剩余毫秒数
+     */
+    @Override
+    public long getTimeToNextWindow() {
+        return getTimeToNextWindow("");
+    }
+
+    /**
+     * 指定维度值的桶中腾出一个空位的剩余毫秒数
+     */
+    @Override
+    public long getTimeToNextWindow(String limitKey) {
+        long state = table.get(KeyedCounterTable.hash(salt, limitKey));
+        if (state == 0) {
+            return 0;
+        }
+        long waitNanos = tatOf(state) - table.nowNanos() - (toleranceNanos - emissionIntervalNanos);
+        return waitNanos <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitNanos + NANOS_PER_MS - 1);
+    }
+
+    private static long tatOf(long state) {
+        return KeyedCounterTable.expireAtMsOf(state) * NANOS_PER_MS - KeyedCounterTable.low24Of(state);
+    }
+}
@@ -0,0 +1,65 @@
+package com.geektime.ratelimiter.alg;
+
+import com.geektime.ratelimiter.exception.InternalErrorException;
+
+/**
+ * @Description: 按维度值（用户ID、IP、租户等）分别计数的限流算法接口
+ * 同一条规则下每个维度值各自拥有一份限额。tryAcquire()不带维度值时，
+ * 所有未提供维度值的请求共享同一份限额（以空字符串为维度值）。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:06
+ **/
+public interface KeyedRateLimitAlg extends RateLimitAlg {
+    /**
+     * 尝试为指定维度值获取一个令牌
+     * @param limitKey 维度值，如用户ID
+     * @return 是否获取成功
+     * @throws InternalErrorException 当发生内部错误时抛出
+     */
+    default boolean tryAcquire(String limitKey) throws InternalErrorException {
+        return tryAcquire(limitKey, 1);
+    }
+
+    /**
+     * 尝试为指定维度值一次性获取多个令牌
+     * @param limitKey 维度值
+     * @param permits 令牌数，必须为正数
+     * @return 是否获取成功
+     * @throws InternalErrorException 当发生内部错误时抛出
+     */
+    boolean tryAcquire(String limitKey, int permits) throws InternalErrorException;
+
+    /**
+     * 获取指定维度值在当前时间窗口内的请求数
+     * @param limitKey 维度值
+     */
+    int getCurrentCount(String limitKey);
+
+    /**
+     * 获取指定维度值下次可能获取到令牌的剩余毫秒数
+     * 默认与维度值无关，返回getTimeToNextWindow()；各维度值状态不同步推进的算法应覆盖本方法
+     * @param limitKey 维度值
+     */
+    default long getTimeToNextWindow(String limitKey) {
+        return getTimeToNextWindow();
+    }
+
+    @Override
+    default boolean tryAcquire(int permits) throws InternalErrorException {
+        return tryAcquire("", permits);
+    }
+
+    @Override
+    default int getCurrentCount() {
+        return getCurrentCount("");
+    }
+
+    /**
+     * 各维度值的状态保存在共享的KeyedCounterTable中，且按规则配置确定哈希盐值，
+     * 本对象丢弃后重建仍能找回原有状态
+     */
+    @Override
+    default boolean isIdle() {
+        return true;
+    }
+}
@@ -1,32 +1,64 @@
 package com.geektime.ratelimiter.alg;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * 漏桶限流算法
+ * 漏桶限流算法（GCRA虚拟调度实现）
+ * 不再为每个请求保存时间戳，只维护一个"理论到达时间"（TAT，纳秒）：
+ * 桶中积压的请求会在TAT时刻全部漏完，每放入一个请求TAT后移一个漏出间隔。
+ * 新请求到达时，若放入后 TAT - now 不超过 capacity 个漏出间隔，说明桶未满，允许请求。
+ * 语义与逐个漏出的漏桶完全一致，时间、空间复杂度均为O(1)，通过CAS更新，不加锁。
  */
-public class LeakyBucketRateLimiter {
+public class LeakyBucketRateLimiter implements RateLimitAlg {
+    // 防止 capacity * leakIntervalNanos 溢出
+    private static final long MAX_TOLERANCE_NANOS = Long.MAX_VALUE / 4;
+
     private final int capacity;
-    private final long leakIntervalInMs;
-    private final Queue<Long> bucket;
-    private long lastLeakTime;
+    private final long leakIntervalNanos;
+    private final long toleranceNanos;
+    private final Ticker ticker;
+    private final AtomicLong theoreticalArrivalTime;
 
     /**
      * @param capacity         漏桶容量
      * @param leakIntervalInMs 漏出间隔（毫秒）
      */
     public LeakyBucketRateLimiter(int capacity, long leakIntervalInMs) {
+        this(capacity, leakIntervalInMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 漏出间隔不是整毫秒时使用，例如每秒600个请求对应1666666纳秒
+     * @param capacity     漏桶容量
+     * @param leakInterval 漏出间隔
+     * @param unit         漏出间隔的时间单位
+     */
+    public LeakyBucketRateLimiter(int capacity, long leakInterval, TimeUnit unit) {
+        this(capacity, leakInterval, unit, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    protected LeakyBucketRateLimiter(int capacity, long leakIntervalInMs, Ticker ticker) {
+        this(capacity, leakIntervalInMs, TimeUnit.MILLISECONDS, ticker);
+    }
+
+    @VisibleForTesting
+    protected LeakyBucketRateLimiter(int capacity, long leakInterval, TimeUnit unit, Ticker ticker) {
         if (capacity <= 0) {
             throw new IllegalArgumentException("Capacity must be positive");
         }
-        if (leakIntervalInMs <= 0) {
+        if (leakInterval <= 0) {
             throw new IllegalArgumentException("Leak interval must be positive");
         }
         this.capacity = capacity;
-        this.leakIntervalInMs = leakIntervalInMs;
-        this.bucket = new LinkedList<>();
-        this.lastLeakTime = System.currentTimeMillis();
+        this.leakIntervalNanos = unit.toNanos(leakInterval);
+        this.toleranceNanos = multiply(capacity, leakIntervalNanos);
+        this.ticker = ticker;
+        this.theoreticalArrivalTime = new AtomicLong(ticker.read());
     }
 
     /**
@@ -34,30 +66,34 @@ public class LeakyBucketRateLimiter {
      *
      * @return 是否允许请求
      */
-    public synchronized boolean tryAcquire() {
-        leak();
-
-        if (bucket.size() < capacity) {
-            bucket.add(System.currentTimeMillis());
-            return true;
-        } else {
-            return false;
-        }
+    @Override
+    public boolean tryAcquire() {
+        return tryAcquire(1);
     }
 
     /**
-     * 以固定速率漏出请求
+     * 尝试一次性添加多个请求到漏桶，要么全部放入，要么一个也不放入
+     *
+     * @param permits 请求数
+     * @return 是否允许请求
      */
-    private void leak() {
-        long currentTime = System.currentTimeMillis();
-        while (!bucket.isEmpty() && (currentTime - lastLeakTime) >= leakIntervalInMs) {
-            bucket.poll();
-            lastLeakTime += leakIntervalInMs;
+    @Override
+    public boolean tryAcquire(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive");
         }
-
-        // 防止时间回拨导致的异常
-        if (currentTime - lastLeakTime >= leakIntervalInMs * 10) { // 10次漏出间隔
-            lastLeakTime = currentTime;
+        long increment = multiply(permits, leakIntervalNanos);
+        long now = ticker.read();
+        while (true) {
+            long tat = theoreticalArrivalTime.get();
+            // 桶已漏空时从当前时刻开始排
+            long newTat = (tat - now > 0 ? tat : now) + increment;
+            if (newTat - now > toleranceNanos) {
+                return false;
+            }
+            if (theoreticalArrivalTime.compareAndSet(tat, newTat)) {
+                return true;
+            }
         }
     }
 
@@ -66,26 +102,48 @@ public class LeakyBucketRateLimiter {
      *
      * @return 当前请求数
      */
-    public synchronized int getCurrentCount() {
-        leak();
-        return bucket.size();
+    @Override
+    public int getCurrentCount() {
+        long backlog = theoreticalArrivalTime.get() - ticker.read();
+        if (backlog <= 0) {
+            return 0;
+        }
+        return (int) Math.min(capacity, (backlog + leakIntervalNanos - 1) / leakIntervalNanos);
+    }
+
+    /**
+     * 获取距离桶中腾出一个空位的剩余毫秒数
+     *
+     * @return 剩余毫秒数，桶未满时返回0
+     */
+    @Override
+    public long getTimeToNextWindow() {
+        long waitNanos = theoreticalArrivalTime.get() - ticker.read() - (toleranceNanos - leakIntervalNanos);
+        return ceilMillis(waitNanos);
     }
 
     /**
      * 获取距离下次漏出的剩余毫秒数
      *
-     * @return 剩余毫秒数
+     * @return 剩余毫秒数，桶为空时返回0
      */
-    public synchronized long getTimeToNextLeak() {
-        if (bucket.isEmpty()) {
+    public long getTimeToNextLeak() {
+        long backlog = theoreticalArrivalTime.get() - ticker.read();
+        if (backlog <= 0) {
             return 0;
         }
-        long currentTime = System.currentTimeMillis();
-        long timeSinceLastLeak = currentTime - lastLeakTime;
-        if (timeSinceLastLeak >= leakIntervalInMs) {
+        long remainder = backlog % leakIntervalNanos;
+        return ceilMillis(remainder == 0 ? leakIntervalNanos : remainder);
+    }
+
+    private static long ceilMillis(long nanos) {
+        if (nanos <= 0) {
             return 0;
-        } else {
-            return leakIntervalInMs - timeSinceLastLeak;
         }
+        return TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+    }
+
+    private static long multiply(long count, long nanos) {
+        return count > MAX_TOLERANCE_NANOS / nanos ? MAX_TOLERANCE_NANOS : count * nanos;
     }
-} 
\ No newline at end of file
+}
@@ -13,7 +13,17 @@ public interface RateLimitAlg {
      * @return 是否获取成功
      * @throws InternalErrorException 当发生内部错误时抛出
      */
-    boolean tryAcquire() throws InternalErrorException;
+    default boolean tryAcquire() throws InternalErrorException {
+        return tryAcquire(1);
+    }
+
+    /**
+     * 尝试一次性获取多个令牌，要么全部获取成功，要么一个也不占用
+     * @param permits 令牌数，必须为正数
+     * @return 是否获取成功
+     * @throws InternalErrorException 当发生内部错误时抛出
+     */
+    boolean tryAcquire(int permits) throws InternalErrorException;
 
     /**
      * 获取当前时间窗口内的请求数
@@ -24,4 +34,12 @@ public interface RateLimitAlg {
      * 获取距离下一个时间窗口的剩余毫秒数
      */
     long getTimeToNextWindow();
+
+    /**
+     * 计数器当前是否空闲，即丢弃后重新创建不会改变限流结果
+     * 默认以当前计数为0判断；状态不在本地的实现可以始终返回true
+     */
+    default boolean isIdle() {
+        return getCurrentCount() == 0;
+    }
 }
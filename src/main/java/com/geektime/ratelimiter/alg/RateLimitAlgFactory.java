@@ -0,0 +1,320 @@
+package com.geektime.ratelimiter.alg;
+
+import com.geektime.ratelimiter.alg.redis.RedisLeasedRateLimitAlg;
+import com.geektime.ratelimiter.alg.redis.RedisRateLimitAlg;
+import com.geektime.ratelimiter.rule.ApiLimit;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import redis.clients.jedis.UnifiedJedis;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description: 限流算法工厂，根据规则中配置的算法类型及参数创建对应的限流计数器
+ * 规则中未配置（值为0）的算法参数按limit/unit推导：
+ * - 令牌桶：容量默认为limit，每unit秒填充limit个令牌
+ * - 漏桶：容量默认为limit，漏出间隔默认为unit*10^9/limit纳秒，不取整到毫秒
+ * - 滑动窗口：子窗口个数默认为10
+ * - 固定窗口：stripes大于1时使用分段计数实现
+ * distributed为true的规则创建基于Redis的分布式计数器，需要通过构造函数传入Redis客户端；
+ * 固定窗口的分布式规则配置了leaseTolerance时，使用本地租约模式。
+ * 配置了限流维度的规则创建按维度值计数的限流器，所有维度规则共用一张KeyedCounterTable，
+ * 首次创建维度规则时才分配；支持固定窗口，令牌桶与漏桶统一按GCRA实现。
+ * 规则加载时应先调用validate()校验，非法的参数或组合在加载阶段即被拒绝，不会留到请求线程上创建计数器时才失败。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:06
+ **/
+public class RateLimitAlgFactory {
+    private static final String REDIS_KEY_PREFIX = "ratelimiter:";
+    private static final int MAX_STRIPES = 1 << 16;
+    // 时间参数都会换算成纳秒，超过该值换算时溢出
+    private static final long MAX_UNIT_SECONDS = Long.MAX_VALUE / TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_INTERVAL_MS = Long.MAX_VALUE / TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final UnifiedJedis jedis;
+    // 租约异步续租线程池，首次创建租约计数器时才初始化
+    private volatile ExecutorService leaseRenewExecutor;
+    private final int maxDimensionKeys;
+    private final KeyedCounterTable.OverflowPolicy dimensionOverflowPolicy;
+    // 维度限流的共享计数表，首次创建维度规则的计数器时才初始化
+    private volatile KeyedCounterTable keyedCounterTable;
+
+    public RateLimitAlgFactory() {
+        this(null);
+    }
+
+    /**
+     * @param jedis 分布式限流使用的Redis客户端，JedisCluster或JedisPooled均可；为null时不支持分布式规则
+     */
+    public RateLimitAlgFactory(UnifiedJedis jedis) {
+        this(jedis, KeyedCounterTable.DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * @param jedis 分布式限流使用的Redis客户端，为null时不支持分布式规则
+     * @param maxDimensionKeys 维度限流同时存放的最大维度值个数，决定KeyedCounterTable的内存预算
+     */
+    public RateLimitAlgFactory(UnifiedJedis jedis, int maxDimensionKeys) {
+        this(jedis, maxDimensionKeys, KeyedCounterTable.OverflowPolicy.REJECT);
+    }
+
+    /**
+     * @param jedis 分布式限流使用的Redis客户端，为null时不支持分布式规则
+     * @param maxDimensionKeys 维度限流同时存放的最大维度值个数，决定KeyedCounterTable的内存预算
+     * @param dimensionOverflowPolicy KeyedCounterTable已满时新维度值的处理方式，默认为拒绝
+     */
+    public RateLimitAlgFactory(UnifiedJedis jedis, int maxDimensionKeys,
+                               KeyedCounterTable.OverflowPolicy dimensionOverflowPolicy) {
+        if (maxDimensionKeys <= 0) {
+            throw new IllegalArgumentException("Max dimension keys must be positive");
+        }
+        if (dimensionOverflowPolicy == null) {
+            throw new IllegalArgumentException("Dimension overflow policy must not be null");
+        }
+        this.jedis = jedis;
+        this.maxDimensionKeys = maxDimensionKeys;
+        this.dimensionOverflowPolicy = dimensionOverflowPolicy;
+    }
+
+    /**
+     * 创建规则对应的限流计数器
+     * @param apiLimit 限流规则
+     * @return 限流计数器
+     */
+    public RateLimitAlg create(ApiLimit apiLimit) {
+        validate(apiLimit);
+        RateLimitAlgType algorithm = algorithmOf(apiLimit);
+        if (apiLimit.isDimensional()) {
+            return createKeyed(apiLimit, algorithm);
+        }
+        if (apiLimit.isDistributed()) {
+            return createDistributed(apiLimit, algorithm);
+        }
+        long windowSizeInMs = apiLimit.getUnit() * 1000;
+        switch (algorithm) {
+            case FIXED_WINDOW:
+                if (apiLimit.getStripes() > 1) {
+                    return new StripedFixedTimeWinRateLimitAlg(apiLimit.getLimit(), windowSizeInMs, apiLimit.getStripes());
+                }
+                return new FixedTimeWinRateLimitAlg(apiLimit.getLimit(), windowSizeInMs);
+            case SLIDING_WINDOW:
+                return new SlidingWindowRateLimiter(apiLimit.getLimit(), windowSizeInMs, windowBuckets(apiLimit));
+            case TOKEN_BUCKET:
+                return new TokenBucketRateLimiter(
+                        burstCapacity(apiLimit), refillTokens(apiLimit), refillIntervalInMs(apiLimit));
+            case LEAKY_BUCKET:
+                return new LeakyBucketRateLimiter(
+                        Math.toIntExact(burstCapacity(apiLimit)), leakIntervalNanos(apiLimit), TimeUnit.NANOSECONDS);
+            default:
+                throw new IllegalArgumentException("Unsupported rate limit algorithm: " + algorithm);
+        }
+    }
+
+    /**
+     * 校验规则能否创建计数器，包括参数取值以及算法、分布式、维度之间的组合
+     * @param apiLimit 限流规则
+     * @throws IllegalArgumentException 规则非法
+     */
+    public void validate(ApiLimit apiLimit) {
+        RateLimitAlgType algorithm = algorithmOf(apiLimit);
+        if (apiLimit.getLimit() <= 0) {
+            throw invalid(apiLimit, "limit must be positive");
+        }
+        if (apiLimit.getUnit() <= 0) {
+            throw invalid(apiLimit, "unit must be positive");
+        }
+        if (apiLimit.getUnit() > MAX_UNIT_SECONDS) {
+            throw invalid(apiLimit, "unit must not exceed " + MAX_UNIT_SECONDS + " seconds");
+        }
+        if (apiLimit.getRefillIntervalInMs() > MAX_INTERVAL_MS || apiLimit.getLeakIntervalInMs() > MAX_INTERVAL_MS) {
+            throw invalid(apiLimit, "refillIntervalInMs and leakIntervalInMs must not exceed " + MAX_INTERVAL_MS);
+        }
+        if (apiLimit.getBurstCapacity() < 0 || apiLimit.getRefillTokens() < 0 || apiLimit.getRefillIntervalInMs() < 0
+                || apiLimit.getLeakIntervalInMs() < 0 || apiLimit.getWindowBuckets() < 0 || apiLimit.getStripes() < 0) {
+            throw invalid(apiLimit, "algorithm parameters must not be negative");
+        }
+        if (apiLimit.getStripes() > MAX_STRIPES) {
+            throw invalid(apiLimit, "stripes must not exceed " + MAX_STRIPES);
+        }
+        if (!(apiLimit.getLeaseTolerance() >= 0 && apiLimit.getLeaseTolerance() <= 1)) {
+            throw invalid(apiLimit, "leaseTolerance must be in [0, 1]");
+        }
+        if (algorithm == RateLimitAlgType.LEAKY_BUCKET && burstCapacity(apiLimit) > Integer.MAX_VALUE) {
+            throw invalid(apiLimit, "burstCapacity of LEAKY_BUCKET must not exceed " + Integer.MAX_VALUE);
+        }
+        if (algorithm == RateLimitAlgType.LEAKY_BUCKET && leakIntervalNanos(apiLimit) <= 0) {
+            throw invalid(apiLimit, "leak rate must not exceed one request per nanosecond");
+        }
+        boolean localFixedWindow = algorithm == RateLimitAlgType.FIXED_WINDOW
+                && !apiLimit.isDistributed() && !apiLimit.isDimensional();
+        if (apiLimit.getStripes() > 1 && !localFixedWindow) {
+            throw invalid(apiLimit, "stripes only applies to local FIXED_WINDOW rules without dimension");
+        }
+        if (apiLimit.getLeaseTolerance() > 0
+                && !(apiLimit.isDistributed() && algorithm == RateLimitAlgType.FIXED_WINDOW)) {
+            throw invalid(apiLimit, "leaseTolerance only applies to distributed FIXED_WINDOW rules");
+        }
+        if (apiLimit.isDistributed() && jedis == null) {
+            throw invalid(apiLimit, "distributed rule requires a redis client");
+        }
+        if (apiLimit.isDimensional()) {
+            validateKeyed(apiLimit, algorithm);
+        }
+    }
+
+    private void validateKeyed(ApiLimit apiLimit, RateLimitAlgType algorithm) {
+        if (apiLimit.isDistributed()) {
+            throw invalid(apiLimit, "distributed rule does not support dimension " + apiLimit.getDimension());
+        }
+        switch (algorithm) {
+            case FIXED_WINDOW:
+                if (apiLimit.getLimit() > KeyedFixedTimeWinRateLimitAlg.MAX_LIMIT) {
+                    throw invalid(apiLimit, "limit of a dimension rule must not exceed "
+                            + KeyedFixedTimeWinRateLimitAlg.MAX_LIMIT);
+                }
+                return;
+            case TOKEN_BUCKET:
+                if (TimeUnit.MILLISECONDS.toNanos(refillIntervalInMs(apiLimit)) / refillTokens(apiLimit) <= 0) {
+                    throw invalid(apiLimit, "refill rate of a dimension rule must not exceed one token per nanosecond");
+                }
+                return;
+            case LEAKY_BUCKET:
+                return;
+            default:
+                throw invalid(apiLimit, "algorithm " + algorithm + " does not support dimension " + apiLimit.getDimension());
+        }
+    }
+
+    private static IllegalArgumentException invalid(ApiLimit apiLimit, String reason) {
+        return new IllegalArgumentException("Invalid rate limit rule, appId: " + apiLimit.getAppId()
+                + ", api: " + apiLimit.getApi() + ", " + reason);
+    }
+
+    private static RateLimitAlgType algorithmOf(ApiLimit apiLimit) {
+        return apiLimit.getAlgorithm() == null ? RateLimitAlgType.FIXED_WINDOW : apiLimit.getAlgorithm();
+    }
+
+    private RateLimitAlg createDistributed(ApiLimit apiLimit, RateLimitAlgType algorithm) {
+        String key = redisKey(apiLimit);
+        long windowSizeInMs = apiLimit.getUnit() * 1000;
+        switch (algorithm) {
+            case FIXED_WINDOW:
+                if (apiLimit.getLeaseTolerance() > 0) {
+                    return new RedisLeasedRateLimitAlg(jedis, key, apiLimit.getLimit(), windowSizeInMs,
+                            apiLimit.getLeaseTolerance(), leaseRenewExecutor());
+                }
+                return RedisRateLimitAlg.fixedWindow(jedis, key, apiLimit.getLimit(), windowSizeInMs);
+            case SLIDING_WINDOW:
+                return RedisRateLimitAlg.slidingWindow(jedis, key, apiLimit.getLimit(), windowSizeInMs, windowBuckets(apiLimit));
+            case TOKEN_BUCKET:
+                return RedisRateLimitAlg.tokenBucket(jedis, key, burstCapacity(apiLimit),
+                        (double) refillTokens(apiLimit) / refillIntervalInMs(apiLimit));
+            case LEAKY_BUCKET:
+                return RedisRateLimitAlg.leakyBucket(jedis, key,
+                        Math.toIntExact(burstCapacity(apiLimit)), leakIntervalNanos(apiLimit));
+            default:
+                throw new IllegalArgumentException("Unsupported rate limit algorithm: " + algorithm);
+        }
+    }
+
+    private RateLimitAlg createKeyed(ApiLimit apiLimit, RateLimitAlgType algorithm) {
+        KeyedCounterTable table = keyedCounterTable();
+        long salt = keyedSalt(apiLimit, algorithm);
+        switch (algorithm) {
+            case FIXED_WINDOW:
+                return new KeyedFixedTimeWinRateLimitAlg(table, salt, apiLimit.getLimit(), apiLimit.getUnit() * 1000);
+            case TOKEN_BUCKET:
+                return new KeyedLeakyBucketRateLimitAlg(table, salt, burstCapacity(apiLimit),
+                        TimeUnit.MILLISECONDS.toNanos(refillIntervalInMs(apiLimit)) / refillTokens(apiLimit));
+            case LEAKY_BUCKET:
+                return new KeyedLeakyBucketRateLimitAlg(table, salt, burstCapacity(apiLimit), leakIntervalNanos(apiLimit));
+            default:
+                throw new IllegalArgumentException("Rate limit algorithm " + algorithm + " does not support dimension: "
+                        + apiLimit.getDimension() + ", appId: " + apiLimit.getAppId() + ", api: " + apiLimit.getApi());
+        }
+    }
+
+    /**
+     * 规则盐值由决定状态含义的配置推导，同一规则的计数器被淘汰后重建仍能找回各维度值的状态
+     */
+    private long keyedSalt(ApiLimit apiLimit, RateLimitAlgType algorithm) {
+        long salt = KeyedCounterTable.hash(apiLimit.getUnit(), apiLimit.getAppId());
+        salt = KeyedCounterTable.hash(salt, apiLimit.getApi());
+        return KeyedCounterTable.hash(salt, algorithm.name() + ":" + apiLimit.getDimension().name());
+    }
+
+    /**
+     * @return 维度限流的共享计数表，尚未创建过维度规则时返回null
+     */
+    public KeyedCounterTable getKeyedCounterTable() {
+        return keyedCounterTable;
+    }
+
+    private KeyedCounterTable keyedCounterTable() {
+        KeyedCounterTable table = keyedCounterTable;
+        if (table == null) {
+            synchronized (this) {
+                table = keyedCounterTable;
+                if (table == null) {
+                    table = new KeyedCounterTable(maxDimensionKeys, dimensionOverflowPolicy);
+                    keyedCounterTable = table;
+                }
+            }
+        }
+        return table;
+    }
+
+    private ExecutorService leaseRenewExecutor() {
+        ExecutorService executor = leaseRenewExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = leaseRenewExecutor;
+                if (executor == null) {
+                    executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                            .setNameFormat("ratelimiter-lease-renew-%d")
+                            .setDaemon(true)
+                            .build());
+                    leaseRenewExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * 整个appId:api作为hash tag，同一规则的所有key都落在同一个slot上
+     */
+    private String redisKey(ApiLimit apiLimit) {
+        return REDIS_KEY_PREFIX + "{" + apiLimit.getAppId() + ":" + apiLimit.getApi() + "}";
+    }
+
+    private long burstCapacity(ApiLimit apiLimit) {
+        return apiLimit.getBurstCapacity() > 0 ? apiLimit.getBurstCapacity() : apiLimit.getLimit();
+    }
+
+    private long refillTokens(ApiLimit apiLimit) {
+        return apiLimit.getRefillTokens() > 0 ? apiLimit.getRefillTokens() : apiLimit.getLimit();
+    }
+
+    private long refillIntervalInMs(ApiLimit apiLimit) {
+        return apiLimit.getRefillIntervalInMs() > 0 ? apiLimit.getRefillIntervalInMs() : apiLimit.getUnit() * 1000;
+    }
+
+    private int windowBuckets(ApiLimit apiLimit) {
+        return apiLimit.getWindowBuckets() > 0 ? apiLimit.getWindowBuckets() : SlidingWindowRateLimiter.DEFAULT_BUCKETS;
+    }
+
+    /**
+     * 未配置漏出间隔时按纳秒推导，例如unit=1、limit=600得到1666666纳秒，取整到毫秒会变成每秒1000个
+     */
+    private long leakIntervalNanos(ApiLimit apiLimit) {
+        if (apiLimit.getLeakIntervalInMs() > 0) {
+            return TimeUnit.MILLISECONDS.toNanos(apiLimit.getLeakIntervalInMs());
+        }
+        if (apiLimit.getLimit() <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        return TimeUnit.SECONDS.toNanos(apiLimit.getUnit()) / apiLimit.getLimit();
+    }
+}
@@ -0,0 +1,17 @@
+package com.geektime.ratelimiter.alg;
+
+/**
+ * @Description: 限流算法类型
+ * - FIXED_WINDOW: 固定时间窗口，实现最简单，但窗口边界处最多会放过2倍limit的突发流量
+ * - SLIDING_WINDOW: 滑动时间窗口，平滑窗口边界处的突发
+ * - TOKEN_BUCKET: 令牌桶，允许不超过桶容量的突发，长期速率受填充速率约束
+ * - LEAKY_BUCKET: 漏桶，以固定间隔放行请求，输出最平滑
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:06
+ **/
+public enum RateLimitAlgType {
+    FIXED_WINDOW,
+    SLIDING_WINDOW,
+    TOKEN_BUCKET,
+    LEAKY_BUCKET
+}
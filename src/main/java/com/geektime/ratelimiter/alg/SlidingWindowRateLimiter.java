@@ -1,33 +1,64 @@
 package com.geektime.ratelimiter.alg;
 
-import java.util.Deque;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
- * 滑动时间窗口限流算法
+ * 滑动时间窗口限流算法（滑动窗口计数器）
+ * 把时间窗口切成buckets个子窗口，用一个定长环形数组记录每个子窗口的请求数，
+ * 窗口内请求数即最近buckets个子窗口的计数之和。每个槽位是一个long：高32位为子窗口序号，低32位为计数，
+ * 序号不匹配的槽位视为已过期，写入时直接覆盖，因此不需要单独的清理过程。
+ * 内存占用为O(buckets)，与limit无关；判定过程只有CAS，不加锁。
+ * 子窗口越多精度越高，窗口边界处的误差不超过一个子窗口的请求量。
  */
-public class SlidingWindowRateLimiter {
+public class SlidingWindowRateLimiter implements RateLimitAlg {
+    public static final int DEFAULT_BUCKETS = 10;
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+
     private final int limit;
-    private final long windowSizeInMs;
-    private final Deque<Long> requestTimestamps;
-    private final Lock lock = new ReentrantLock();
+    private final int buckets;
+    private final long subWindowNanos;
+    private final Ticker ticker;
+    private final long startNanos;
+    private final AtomicLongArray slots;
 
     /**
      * @param limit          时间窗口内最大请求数
      * @param windowSizeInMs 时间窗口大小（毫秒）
      */
     public SlidingWindowRateLimiter(int limit, long windowSizeInMs) {
+        this(limit, windowSizeInMs, DEFAULT_BUCKETS);
+    }
+
+    /**
+     * @param limit          时间窗口内最大请求数
+     * @param windowSizeInMs 时间窗口大小（毫秒）
+     * @param buckets        子窗口个数，即统计精度
+     */
+    public SlidingWindowRateLimiter(int limit, long windowSizeInMs, int buckets) {
+        this(limit, windowSizeInMs, buckets, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    protected SlidingWindowRateLimiter(int limit, long windowSizeInMs, int buckets, Ticker ticker) {
         if (limit <= 0) {
             throw new IllegalArgumentException("Limit must be positive");
         }
         if (windowSizeInMs <= 0) {
             throw new IllegalArgumentException("Window size must be positive");
         }
+        if (buckets <= 0) {
+            throw new IllegalArgumentException("Buckets must be positive");
+        }
         this.limit = limit;
-        this.windowSizeInMs = windowSizeInMs;
-        this.requestTimestamps = new ConcurrentLinkedDeque<>();
+        this.buckets = buckets;
+        this.subWindowNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(windowSizeInMs) / buckets);
+        this.ticker = ticker;
+        this.startNanos = ticker.read();
+        this.slots = new AtomicLongArray(buckets);
     }
 
     /**
@@ -35,23 +66,42 @@ public class SlidingWindowRateLimiter {
      *
      * @return 是否允许请求
      */
+    @Override
     public boolean tryAcquire() {
-        long currentTime = System.currentTimeMillis();
-        lock.lock();
-        try {
-            // 移除窗口外的请求
-            while (!requestTimestamps.isEmpty() && (currentTime - requestTimestamps.peekFirst()) > windowSizeInMs) {
-                requestTimestamps.pollFirst();
-            }
+        return tryAcquire(1);
+    }
+
+    /**
+     * 尝试一次性获取多个许可
+     *
+     * @param permits 许可数
+     * @return 是否允许请求
+     */
+    @Override
+    public boolean tryAcquire(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive");
+        }
+        long subWindow = currentSubWindow();
+        int slot = (int) (subWindow % buckets);
+        int tag = (int) subWindow;
 
-            if (requestTimestamps.size() < limit) {
-                requestTimestamps.addLast(currentTime);
-                return true;
-            } else {
+        // 先计入当前子窗口，再统计整个窗口，超限则回滚，保证不会多放行
+        while (true) {
+            long state = slots.get(slot);
+            long next = tagOf(state) == tag ? state + permits : pack(tag, permits);
+            if (slots.compareAndSet(slot, state, next)) {
+                break;
+            }
+        }
+        if (sum(tag) <= limit) {
+            return true;
+        }
+        while (true) {
+            long state = slots.get(slot);
+            if (tagOf(state) != tag || slots.compareAndSet(slot, state, state - permits)) {
                 return false;
             }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -60,40 +110,61 @@ public class SlidingWindowRateLimiter {
      *
      * @return 当前请求数
      */
+    @Override
     public int getCurrentCount() {
-        long currentTime = System.currentTimeMillis();
-        lock.lock();
-        try {
-            while (!requestTimestamps.isEmpty() && (currentTime - requestTimestamps.peekFirst()) > windowSizeInMs) {
-                requestTimestamps.pollFirst();
-            }
-            return requestTimestamps.size();
-        } finally {
-            lock.unlock();
-        }
+        return (int) Math.min(Integer.MAX_VALUE, sum((int) currentSubWindow()));
     }
 
     /**
-     * 获取距离下一个请求进入窗口的剩余毫秒数
+     * 获取距离窗口内最早一批请求滑出窗口的剩余毫秒数
      *
-     * @return 剩余毫秒数
+     * @return 剩余毫秒数，窗口内没有请求时返回0
      */
+    @Override
     public long getTimeToNextWindow() {
-        lock.lock();
-        try {
-            if (requestTimestamps.isEmpty()) {
-                return 0;
+        long elapsed = ticker.read() - startNanos;
+        long subWindow = elapsed / subWindowNanos;
+        int tag = (int) subWindow;
+        int oldestAge = -1;
+        for (int i = 0; i < buckets; i++) {
+            long state = slots.get(i);
+            int age = tag - tagOf(state);
+            if (age >= 0 && age < buckets && (state & COUNT_MASK) > 0 && age > oldestAge) {
+                oldestAge = age;
             }
-            long currentTime = System.currentTimeMillis();
-            long earliest = requestTimestamps.peekFirst();
-            long elapsed = currentTime - earliest;
-            if (elapsed >= windowSizeInMs) {
-                return 0;
-            } else {
-                return windowSizeInMs - elapsed;
+        }
+        if (oldestAge < 0) {
+            return 0;
+        }
+        long expireAt = (subWindow - oldestAge + buckets) * subWindowNanos;
+        return TimeUnit.NANOSECONDS.toMillis(expireAt - elapsed + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+    }
+
+    private long currentSubWindow() {
+        return (ticker.read() - startNanos) / subWindowNanos;
+    }
+
+    /**
+     * 统计最近buckets个子窗口（含当前子窗口）的请求数
+     */
+    private long sum(int tag) {
+        long total = 0;
+        for (int i = 0; i < buckets; i++) {
+            long state = slots.get(i);
+            // 子窗口序号按32位回绕比较，差值落在[0, buckets)内才属于当前窗口
+            int age = tag - tagOf(state);
+            if (age >= 0 && age < buckets) {
+                total += state & COUNT_MASK;
             }
-        } finally {
-            lock.unlock();
         }
+        return total;
+    }
+
+    private static int tagOf(long state) {
+        return (int) (state >>> 32);
+    }
+
+    private static long pack(int tag, long count) {
+        return ((long) tag << 32) | count;
     }
-} 
\ No newline at end of file
+}
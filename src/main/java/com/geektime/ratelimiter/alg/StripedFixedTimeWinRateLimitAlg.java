@@ -0,0 +1,223 @@
+package com.geektime.ratelimiter.alg;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @Description: 分段计数的固定时间窗口限流算法，适用于承担大部分流量的热点规则
+ * 单个计数器在多线程下会因CAS重试和缓存行来回失效而退化成单核吞吐。本实现参考LongAdder，
+ * 把计数拆到多个按缓存行填充隔开的分段上，每个分段持有limit的一份本地配额，线程优先在自己的分段上计数；
+ * 本地配额用完后再依次向其他分段借用，所有分段都用完才拒绝。
+ * 各分段配额之和恰好等于limit，因此不会多放行；只有在并发借用的瞬间可能少放行个别请求。
+ * 每个分段的状态与FixedTimeWinRateLimitAlg相同：高32位窗口序号，低32位窗口内计数。
+ * 一次获取多个许可时可能跨分段凑数，凑不够则归还已拿到的许可，归还前的瞬间其他请求可能被少放行。
+ * 所有分段都用完后记下当前窗口，同一窗口内的后续请求直接拒绝；记下后会再确认一遍分段，
+ * 归还许可时也会清除该标记，避免归还前的瞬间误判为用完而拒绝整个窗口的剩余请求。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:06
+ **/
+public class StripedFixedTimeWinRateLimitAlg implements RateLimitAlg {
+    private static final Logger log = LoggerFactory.getLogger(StripedFixedTimeWinRateLimitAlg.class);
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+    // 分段间隔16个long（128字节），避免相邻分段落在同一缓存行或被相邻行预取
+    private static final int PADDING = 16;
+
+    private final Stopwatch stopwatch;
+    private final AtomicLongArray cells;
+    private final int[] quotas;
+    private final int stripeMask;
+    private final long windowSizeInMs;
+    // 所有分段配额均已用完的窗口序号，同一窗口内后续请求只需一次读即可拒绝
+    private volatile int exhaustedWindow = -1;
+
+    /**
+     * @param limit 时间窗口内最大请求数
+     * @param windowSizeInMs 时间窗口大小（毫秒）
+     * @param stripes 分段数，向上取整为2的幂
+     */
+    public StripedFixedTimeWinRateLimitAlg(int limit, long windowSizeInMs, int stripes) {
+        this(limit, windowSizeInMs, stripes, Stopwatch.createStarted());
+    }
+
+    @VisibleForTesting
+    protected StripedFixedTimeWinRateLimitAlg(int limit, long windowSizeInMs, int stripes, Stopwatch stopwatch) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        if (windowSizeInMs <= 0) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        if (stripes <= 0 || stripes > (1 << 16)) {
+            throw new IllegalArgumentException("Stripes must be in [1, 65536]");
+        }
+        int stripeCount = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.windowSizeInMs = windowSizeInMs;
+        this.stopwatch = stopwatch;
+        this.stripeMask = stripeCount - 1;
+        this.cells = new AtomicLongArray((stripeCount + 1) * PADDING);
+        // limit均分到各分段，余数分给前几个分段，配额之和恰好为limit
+        this.quotas = new int[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            quotas[i] = limit / stripeCount + (i < limit % stripeCount ? 1 : 0);
+        }
+        log.info("Created StripedFixedTimeWinRateLimitAlg with limit: {}, window size: {}ms, stripes: {}",
+                limit, windowSizeInMs, stripeCount);
+    }
+
+    @Override
+    public boolean tryAcquire() {
+        int window = currentWindow();
+        if (exhaustedWindow == window) {
+            return false;
+        }
+        int home = probe() & stripeMask;
+        while (true) {
+            for (int i = 0; i <= stripeMask; i++) {
+                if (take((home + i) & stripeMask, window, 1) == 1) {
+                    return true;
+                }
+            }
+            exhaustedWindow = window;
+            // 标记之前完成的归还在这里一定可见，之后的归还会自己清除标记
+            if (!hasQuota(window)) {
+                return false;
+            }
+            clearExhausted(window);
+        }
+    }
+
+    /**
+     * 一次获取多个许可：从本线程的分段开始依次从各分段拿取，凑不够时把已拿到的归还
+     */
+    @Override
+    public boolean tryAcquire(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive");
+        }
+        if (permits == 1) {
+            return tryAcquire();
+        }
+        int window = currentWindow();
+        if (exhaustedWindow == window) {
+            return false;
+        }
+        int home = probe() & stripeMask;
+        int remaining = permits;
+        for (int i = 0; i <= stripeMask && remaining > 0; i++) {
+            remaining -= take((home + i) & stripeMask, window, remaining);
+        }
+        if (remaining == 0) {
+            return true;
+        }
+        giveBack(home, window, permits - remaining);
+        return false;
+    }
+
+    /**
+     * 从分段中最多拿取max个许可
+     * @return 实际拿到的许可数
+     */
+    private int take(int stripe, int window, int max) {
+        int index = (stripe + 1) * PADDING;
+        int quota = quotas[stripe];
+        while (true) {
+            long current = cells.get(index);
+            int cellWindow = windowOf(current);
+            int targetWindow = window - cellWindow < 0 ? cellWindow : window;
+            int count = targetWindow == cellWindow ? countOf(current) : 0;
+            int granted = Math.min(max, quota - count);
+            if (granted <= 0) {
+                return 0;
+            }
+            if (cells.compareAndSet(index, current, pack(targetWindow, count + granted))) {
+                return granted;
+            }
+        }
+    }
+
+    /**
+     * 归还许可，从home开始依次从各分段的计数中扣回，不要求还到拿取时的分段，
+     * 只要扣回的总数相同，各分段计数之和就不变，且不会超过各自的配额；已切换到新窗口的分段无需归还
+     */
+    private void giveBack(int home, int window, int permits) {
+        for (int i = 0; i <= stripeMask && permits > 0; i++) {
+            int index = (((home + i) & stripeMask) + 1) * PADDING;
+            while (true) {
+                long current = cells.get(index);
+                int returned = Math.min(permits, countOf(current));
+                if (windowOf(current) != window || returned <= 0) {
+                    break;
+                }
+                if (cells.compareAndSet(index, current, pack(window, countOf(current) - returned))) {
+                    permits -= returned;
+                    break;
+                }
+            }
+        }
+        clearExhausted(window);
+    }
+
+    private boolean hasQuota(int window) {
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            long current = cells.get((stripe + 1) * PADDING);
+            if (windowOf(current) - window < 0 || countOf(current) < quotas[stripe]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void clearExhausted(int window) {
+        if (exhaustedWindow == window) {
+            exhaustedWindow = -1;
+        }
+    }
+
+    @Override
+    public int getCurrentCount() {
+        int window = currentWindow();
+        int total = 0;
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            long current = cells.get((stripe + 1) * PADDING);
+            if (windowOf(current) == window) {
+                total += countOf(current);
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getTimeToNextWindow() {
+        long currentTime = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+        return windowSizeInMs - currentTime % windowSizeInMs;
+    }
+
+    /**
+     * 线程固定映射到一个分段，同一线程始终优先使用同一分段
+     */
+    private static int probe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    private int currentWindow() {
+        return (int) (stopwatch.elapsed(TimeUnit.MILLISECONDS) / windowSizeInMs);
+    }
+
+    private static int windowOf(long state) {
+        return (int) (state >>> 32);
+    }
+
+    private static int countOf(long state) {
+        return (int) (state & COUNT_MASK);
+    }
+
+    private static long pack(int window, int count) {
+        return ((long) window << 32) | (count & COUNT_MASK);
+    }
+}
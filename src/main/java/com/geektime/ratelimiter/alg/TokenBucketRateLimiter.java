@@ -1,16 +1,27 @@
 package com.geektime.ratelimiter.alg;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * 令牌桶限流算法
+ * 令牌桶限流算法（无锁实现）
+ * 令牌数和上次填充时间被合并成一个long状态emptyAt：桶"恰好为空"的虚拟时间点（纳秒）。
+ * 当前令牌数 = min(capacity, (now - emptyAt) / nanosPerToken)，取走n个令牌即把emptyAt后移n * nanosPerToken。
+ * 令牌按需惰性填充，"填充 + 扣减"由一次CAS完成，不需要加锁，也支持0.5个/毫秒这样的小数速率。
  */
-public class TokenBucketRateLimiter {
+public class TokenBucketRateLimiter implements RateLimitAlg {
+    // 防止极低速率下 capacity * nanosPerToken 溢出
+    private static final long MAX_FULL_BUCKET_NANOS = Long.MAX_VALUE / 4;
+
     private final long capacity;
-    private final long refillTokens;
-    private final long refillIntervalInMs;
-    private final AtomicLong availableTokens;
-    private long lastRefillTimestamp;
+    private final double nanosPerToken;
+    private final long fullBucketNanos;
+    private final long nanosPerSingleToken;
+    private final Ticker ticker;
+    private final AtomicLong emptyAt;
 
     /**
      * @param capacity           令牌桶容量
@@ -18,20 +29,32 @@ public class TokenBucketRateLimiter {
      * @param refillIntervalInMs 填充间隔（毫秒）
      */
     public TokenBucketRateLimiter(long capacity, long refillTokens, long refillIntervalInMs) {
+        this(capacity, refillRatePerMs(refillTokens, refillIntervalInMs), Ticker.systemTicker());
+    }
+
+    /**
+     * @param capacity          令牌桶容量
+     * @param refillTokensPerMs 每毫秒填充的令牌数，可以是小数，例如0.5表示每2毫秒填充一个
+     */
+    public TokenBucketRateLimiter(long capacity, double refillTokensPerMs) {
+        this(capacity, refillTokensPerMs, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    protected TokenBucketRateLimiter(long capacity, double refillTokensPerMs, Ticker ticker) {
         if (capacity <= 0) {
             throw new IllegalArgumentException("Capacity must be positive");
         }
-        if (refillTokens <= 0) {
-            throw new IllegalArgumentException("Refill tokens must be positive");
-        }
-        if (refillIntervalInMs <= 0) {
-            throw new IllegalArgumentException("Refill interval must be positive");
+        if (!(refillTokensPerMs > 0) || Double.isInfinite(refillTokensPerMs)) {
+            throw new IllegalArgumentException("Refill rate must be positive");
         }
         this.capacity = capacity;
-        this.refillTokens = refillTokens;
-        this.refillIntervalInMs = refillIntervalInMs;
-        this.availableTokens = new AtomicLong(capacity);
-        this.lastRefillTimestamp = System.currentTimeMillis();
+        this.nanosPerToken = TimeUnit.MILLISECONDS.toNanos(1) / refillTokensPerMs;
+        this.fullBucketNanos = (long) Math.min(MAX_FULL_BUCKET_NANOS, Math.ceil(capacity * nanosPerToken));
+        this.nanosPerSingleToken = costOf(1);
+        this.ticker = ticker;
+        // 初始为满桶
+        this.emptyAt = new AtomicLong(ticker.read() - fullBucketNanos);
     }
 
     /**
@@ -39,30 +62,41 @@ public class TokenBucketRateLimiter {
      *
      * @return 是否允许请求
      */
-    public synchronized boolean tryAcquire() {
-        refill();
+    @Override
+    public boolean tryAcquire() {
+        return tryAcquire(1, nanosPerSingleToken);
+    }
 
-        if (availableTokens.get() > 0) {
-            availableTokens.decrementAndGet();
-            return true;
-        } else {
+    /**
+     * 尝试一次性获取多个令牌，要么全部获取成功，要么一个也不扣减
+     *
+     * @param permits 令牌数，超过桶容量时永远无法满足，直接返回false
+     * @return 是否允许请求
+     */
+    @Override
+    public boolean tryAcquire(int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive");
+        }
+        if (permits > capacity) {
             return false;
         }
+        return tryAcquire(permits, permits == 1 ? nanosPerSingleToken : costOf(permits));
     }
 
-    /**
-     * 重新填充令牌
-     */
-    private void refill() {
-        long currentTime = System.currentTimeMillis();
-        long elapsedTime = currentTime - lastRefillTimestamp;
-
-        if (elapsedTime > refillIntervalInMs) {
-            long refillCount = elapsedTime / refillIntervalInMs;
-            long tokensToAdd = refillCount * refillTokens;
-            long newTokenCount = Math.min(availableTokens.get() + tokensToAdd, capacity);
-            availableTokens.set(newTokenCount);
-            lastRefillTimestamp += refillCount * refillIntervalInMs;
+    private boolean tryAcquire(int permits, long cost) {
+        long now = ticker.read();
+        while (true) {
+            long current = emptyAt.get();
+            // 桶满后继续产生的令牌被丢弃：emptyAt最早只能是 now - fullBucketNanos
+            long floor = now - fullBucketNanos;
+            long next = (current - floor > 0 ? current : floor) + cost;
+            if (next - now > 0) {
+                return false;
+            }
+            if (emptyAt.compareAndSet(current, next)) {
+                return true;
+            }
         }
     }
 
@@ -72,19 +106,52 @@ public class TokenBucketRateLimiter {
      * @return 可用令牌数
      */
     public long getAvailableTokens() {
-        refill();
-        return availableTokens.get();
+        long elapsed = ticker.read() - emptyAt.get();
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return Math.min(capacity, (long) (elapsed / nanosPerToken));
+    }
+
+    /**
+     * 获取已被消耗（尚未回填）的令牌数
+     *
+     * @return 已消耗令牌数
+     */
+    @Override
+    public int getCurrentCount() {
+        return (int) Math.min(Integer.MAX_VALUE, capacity - getAvailableTokens());
+    }
+
+    @Override
+    public long getTimeToNextWindow() {
+        return getTimeToNextRefill();
     }
 
     /**
-     * 获取距离下次令牌填充的剩余毫秒数
+     * 获取距离下一个令牌可用的剩余毫秒数
      *
-     * @return 剩余毫秒数
+     * @return 剩余毫秒数，当前已有可用令牌时返回0
      */
     public long getTimeToNextRefill() {
-        long currentTime = System.currentTimeMillis();
-        long elapsedTime = currentTime - lastRefillTimestamp;
-        long timeToNext = refillIntervalInMs - (elapsedTime % refillIntervalInMs);
-        return timeToNext;
+        long waitNanos = emptyAt.get() + nanosPerSingleToken - ticker.read();
+        if (waitNanos <= 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+    }
+
+    private long costOf(int permits) {
+        return (long) Math.min(MAX_FULL_BUCKET_NANOS, Math.ceil(permits * nanosPerToken));
+    }
+
+    private static double refillRatePerMs(long refillTokens, long refillIntervalInMs) {
+        if (refillTokens <= 0) {
+            throw new IllegalArgumentException("Refill tokens must be positive");
+        }
+        if (refillIntervalInMs <= 0) {
+            throw new IllegalArgumentException("Refill interval must be positive");
+        }
+        return (double) refillTokens / refillIntervalInMs;
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,306 @@
+package com.geektime.ratelimiter.alg.redis;
+
+import com.geektime.ratelimiter.alg.RateLimitAlg;
+import com.geektime.ratelimiter.exception.InternalErrorException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @Description: 本地额度租约 + Redis全局额度的混合分布式限流计数器
+ * 每个实例从Redis中的固定窗口全局额度里一次领取一批许可（租约），之后在本地以无锁方式扣减，
+ * 不再每次请求都访问Redis。本地剩余许可低于租约的30%时在后台异步续租，只有租约过期或耗尽时才同步访问Redis。
+ *
+ * 租约大小按本实例最近的消耗速率自适应：目标是一份租约大约够用leaseHorizonMs毫秒，
+ * 且不超过 limit * tolerance。新实例从最小租约起步，每次续租最多翻倍，避免先启动的实例一开始就按上限
+ * 领走整个窗口的额度、让其他实例在窗口结束前无额度可用。领取到的许可已经计入全局额度，因此不会多放行；
+ * 误差只来自窗口结束时各实例手中未用完的许可，即全局最多少放行 实例数 * limit * tolerance 个请求。
+ *
+ * 全局额度与RedisRateLimitAlg的固定窗口使用相同的存储格式。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:06
+ **/
+public class RedisLeasedRateLimitAlg implements RateLimitAlg {
+    private static final Logger log = LoggerFactory.getLogger(RedisLeasedRateLimitAlg.class);
+    public static final long DEFAULT_LEASE_HORIZON_MS = 100;
+    private static final double RENEW_THRESHOLD = 0.3;
+    private static final double RATE_SMOOTHING = 0.5;
+
+    private final UnifiedJedis jedis;
+    private final List<String> keys;
+    private final int limit;
+    private final long windowSizeInMs;
+    private final int maxLeaseSize;
+    private final long leaseHorizonNanos;
+    private final Executor renewExecutor;
+    private final Ticker ticker;
+
+    private final AtomicBoolean renewing = new AtomicBoolean(false);
+    private final ReentrantLock renewLock = new ReentrantLock();
+    private final LongAdder consumed = new LongAdder();
+    private volatile Lease lease = Lease.EXPIRED;
+
+    // 以下字段只在持有renewLock时读写
+    private double smoothedRatePerNano;
+    private long lastRenewNanos;
+    private long lastConsumed;
+    private int lastLeaseSize;
+
+    /**
+     * @param jedis Redis客户端
+     * @param key 全局额度的key，应带上hash tag
+     * @param limit 时间窗口内全局最大请求数
+     * @param windowSizeInMs 时间窗口大小（毫秒）
+     * @param tolerance 单份租约最多占全局额度的比例，取值(0, 1]，越小越精确、访问Redis越频繁
+     * @param renewExecutor 执行异步续租的线程池
+     */
+    public RedisLeasedRateLimitAlg(UnifiedJedis jedis, String key, int limit, long windowSizeInMs,
+                                   double tolerance, Executor renewExecutor) {
+        this(jedis, key, limit, windowSizeInMs, tolerance, DEFAULT_LEASE_HORIZON_MS, renewExecutor, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    protected RedisLeasedRateLimitAlg(UnifiedJedis jedis, String key, int limit, long windowSizeInMs, double tolerance,
+                                      long leaseHorizonMs, Executor renewExecutor, Ticker ticker) {
+        if (jedis == null) {
+            throw new IllegalArgumentException("Redis client must not be null");
+        }
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("Key must not be empty");
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive");
+        }
+        if (windowSizeInMs <= 0) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        if (!(tolerance > 0 && tolerance <= 1)) {
+            throw new IllegalArgumentException("Tolerance must be in (0, 1]");
+        }
+        if (leaseHorizonMs <= 0) {
+            throw new IllegalArgumentException("Lease horizon must be positive");
+        }
+        this.jedis = jedis;
+        this.keys = Collections.singletonList(key);
+        this.limit = limit;
+        this.windowSizeInMs = windowSizeInMs;
+        this.maxLeaseSize = (int) Math.max(1, Math.floor(limit * tolerance));
+        this.leaseHorizonNanos = TimeUnit.MILLISECONDS.toNanos(leaseHorizonMs);
+        this.renewExecutor = renewExecutor;
+        this.ticker = ticker;
+        this.lastRenewNanos = ticker.read();
+        log.info("Created RedisLeasedRateLimitAlg for key: {}, limit: {}, window size: {}ms, max lease: {}",
+                key, limit, windowSizeInMs, maxLeaseSize);
+    }
+
+    @Override
+    public boolean tryAcquire() throws InternalErrorException {
+        return tryAcquire(1);
+    }
+
+    /**
+     * 尝试一次性获取多个许可
+     * @param permits 许可数
+     * @return 是否获取成功
+     * @throws InternalErrorException 需要同步续租且访问Redis失败时抛出
+     */
+    @Override
+    public boolean tryAcquire(int permits) throws InternalErrorException {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive");
+        }
+        Lease current = lease;
+        if (current.isValid(ticker.read())) {
+            if (current.take(permits)) {
+                consumed.add(permits);
+                if (current.remaining.get() <= current.renewThreshold && !current.budgetExhausted) {
+                    renewAsync();
+                }
+                return true;
+            }
+            if (current.budgetExhausted) {
+                // 全局额度在本窗口内已经领完，不必再访问Redis
+                return false;
+            }
+        }
+        return acquireWithSyncRenew(permits);
+    }
+
+    /**
+     * 本实例在当前租约窗口内已经消耗的许可数
+     */
+    @Override
+    public int getCurrentCount() {
+        Lease current = lease;
+        if (!current.isValid(ticker.read())) {
+            return 0;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, current.granted.get() - current.remaining.get());
+    }
+
+    @Override
+    public long getTimeToNextWindow() {
+        Lease current = lease;
+        long remainingNanos = current.deadlineNanos - ticker.read();
+        if (remainingNanos <= 0 || !current.budgetExhausted || current.remaining.get() > 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(remainingNanos);
+    }
+
+    private boolean acquireWithSyncRenew(int permits) {
+        renewLock.lock();
+        try {
+            // 等锁期间可能已有其他线程完成续租
+            Lease current = lease;
+            if (current.isValid(ticker.read())) {
+                if (current.take(permits)) {
+                    consumed.add(permits);
+                    return true;
+                }
+                if (current.budgetExhausted) {
+                    return false;
+                }
+            }
+            renew(permits);
+            current = lease;
+            if (current.isValid(ticker.read()) && current.take(permits)) {
+                consumed.add(permits);
+                return true;
+            }
+            return false;
+        } catch (JedisException e) {
+            log.error("Failed to lease permits from redis, key: {}", keys.get(0), e);
+            throw new InternalErrorException("Failed to lease permits from redis", e);
+        } finally {
+            renewLock.unlock();
+        }
+    }
+
+    private void renewAsync() {
+        if (!renewing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            renewExecutor.execute(() -> {
+                renewLock.lock();
+                try {
+                    if (lease.remaining.get() <= lease.renewThreshold && !lease.budgetExhausted) {
+                        renew(1);
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("Failed to renew lease asynchronously, key: {}", keys.get(0), e);
+                } finally {
+                    renewLock.unlock();
+                    renewing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            renewing.set(false);
+            log.warn("Lease renewal rejected by executor, key: {}", keys.get(0));
+        }
+    }
+
+    /**
+     * 从Redis领取一份租约，调用方须持有renewLock
+     */
+    private void renew(int minPermits) {
+        int requested = Math.max(minPermits, nextLeaseSize());
+        List<String> args = List.of(String.valueOf(limit), String.valueOf(windowSizeInMs), String.valueOf(requested));
+        @SuppressWarnings("unchecked")
+        List<Long> result = (List<Long>) RedisRateLimitScripts.LEASE.eval(jedis, keys, args);
+        long granted = result.get(0);
+        long window = result.get(1);
+        long ttlNanos = TimeUnit.MILLISECONDS.toNanos(result.get(2));
+        boolean budgetExhausted = granted < requested;
+
+        long now = ticker.read();
+        Lease current = lease;
+        if (current.window == window && current.isValid(now)) {
+            // 同一窗口内续租，直接叠加到当前租约上，不影响正在扣减的线程
+            current.grant(granted, budgetExhausted);
+        } else {
+            lease = new Lease(window, now + ttlNanos, granted, budgetExhausted);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Leased {}/{} permits for key: {}, window: {}", granted, requested, keys.get(0), window);
+        }
+    }
+
+    /**
+     * 按最近消耗速率的指数平滑值估算下一份租约大小，且不超过上一份租约的两倍，调用方须持有renewLock
+     */
+    private int nextLeaseSize() {
+        long now = ticker.read();
+        long total = consumed.sum();
+        long elapsed = Math.max(1, now - lastRenewNanos);
+        double rate = (double) (total - lastConsumed) / elapsed;
+        smoothedRatePerNano = RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * smoothedRatePerNano;
+        lastRenewNanos = now;
+        lastConsumed = total;
+        long size = (long) Math.ceil(smoothedRatePerNano * leaseHorizonNanos);
+        lastLeaseSize = (int) Math.max(1, Math.min(Math.min(maxLeaseSize, 2L * lastLeaseSize), size));
+        return lastLeaseSize;
+    }
+
+    /**
+     * 一个窗口内的本地租约
+     */
+    private static final class Lease {
+        static final Lease EXPIRED = new Lease(Long.MIN_VALUE, Long.MIN_VALUE, 0, false);
+
+        final long window;
+        final long deadlineNanos;
+        final AtomicLong remaining;
+        final AtomicLong granted;
+        volatile long renewThreshold;
+        volatile boolean budgetExhausted;
+
+        Lease(long window, long deadlineNanos, long granted, boolean budgetExhausted) {
+            this.window = window;
+            this.deadlineNanos = deadlineNanos;
+            this.remaining = new AtomicLong(granted);
+            this.granted = new AtomicLong(granted);
+            this.renewThreshold = (long) (granted * RENEW_THRESHOLD);
+            this.budgetExhausted = budgetExhausted;
+        }
+
+        boolean isValid(long now) {
+            return this != EXPIRED && now - deadlineNanos < 0;
+        }
+
+        boolean take(int permits) {
+            while (true) {
+                long current = remaining.get();
+                if (current < permits) {
+                    return false;
+                }
+                if (remaining.compareAndSet(current, current - permits)) {
+                    return true;
+                }
+            }
+        }
+
+        void grant(long permits, boolean exhausted) {
+            remaining.addAndGet(permits);
+            granted.addAndGet(permits);
+            renewThreshold = (long) (permits * RENEW_THRESHOLD);
+            if (exhausted) {
+                budgetExhausted = true;
+            }
+        }
+    }
+}
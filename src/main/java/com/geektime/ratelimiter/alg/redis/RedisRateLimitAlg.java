@@ -0,0 +1,294 @@
+package com.geektime.ratelimiter.alg.redis;
+
+import com.geektime.ratelimiter.alg.RateLimitAlg;
+import com.geektime.ratelimiter.exception.InternalErrorException;
+import com.geektime.redis.RedisClusterSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.ConnectionPool;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.jedis.util.JedisClusterCRC16;
+import redis.clients.jedis.util.Pool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * @Description: 基于Redis的分布式限流计数器
+ * 所有实例共享Redis中的同一份计数，一次检查就是一次原子的Lua脚本执行（EVALSHA，脚本未缓存时回退为EVAL）。
+ * 支持固定窗口、滑动窗口、令牌桶、漏桶四种算法，通过对应的静态工厂方法创建。
+ * 既可以使用JedisCluster，也可以使用单机的JedisPooled（例如本地或嵌入式Redis）。
+ * key应带上hash tag（例如 ratelimiter:{app-1:/api/v1/user}），保证同一规则的相关key落在同一个slot上。
+ *
+ * getCurrentCount()和getTimeToNextWindow()返回的是最近一次检查时脚本返回的值，不会额外访问Redis。
+ * 多个计数器的检查可以通过tryAcquireAll()合并成pipeline：JedisPooled整批一次往返，
+ * JedisCluster按slot所属节点分组，每个节点一个pipeline，各节点并行执行，整批约一次往返。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:06
+ **/
+public class RedisRateLimitAlg implements RateLimitAlg {
+    private static final Logger log = LoggerFactory.getLogger(RedisRateLimitAlg.class);
+    private static final int PIPELINE_THREADS = 16;
+    private static final int PIPELINE_QUEUE_PER_THREAD = 64;
+
+    private final UnifiedJedis jedis;
+    private final RedisScript script;
+    private final List<String> keys;
+    private final List<String> args;
+    private volatile int lastCount;
+    private volatile long lastWaitInMs;
+
+    private RedisRateLimitAlg(UnifiedJedis jedis, String key, RedisScript script, String... args) {
+        if (jedis == null) {
+            throw new IllegalArgumentException("Redis client must not be null");
+        }
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("Key must not be empty");
+        }
+        this.jedis = jedis;
+        this.script = script;
+        this.keys = Collections.singletonList(key);
+        this.args = List.of(args);
+        log.info("Created RedisRateLimitAlg for key: {}", key);
+    }
+
+    /**
+     * 固定时间窗口
+     * @param limit 时间窗口内最大请求数
+     * @param windowSizeInMs 时间窗口大小（毫秒）
+     */
+    public static RedisRateLimitAlg fixedWindow(UnifiedJedis jedis, String key, int limit, long windowSizeInMs) {
+        checkPositive(limit, "Limit");
+        checkPositive(windowSizeInMs, "Window size");
+        return new RedisRateLimitAlg(jedis, key, RedisRateLimitScripts.FIXED_WINDOW,
+                String.valueOf(limit), String.valueOf(windowSizeInMs));
+    }
+
+    /**
+     * 滑动时间窗口（子窗口计数）
+     * @param limit 时间窗口内最大请求数
+     * @param windowSizeInMs 时间窗口大小（毫秒）
+     * @param buckets 子窗口个数
+     */
+    public static RedisRateLimitAlg slidingWindow(UnifiedJedis jedis, String key, int limit, long windowSizeInMs, int buckets) {
+        checkPositive(limit, "Limit");
+        checkPositive(windowSizeInMs, "Window size");
+        checkPositive(buckets, "Buckets");
+        return new RedisRateLimitAlg(jedis, key, RedisRateLimitScripts.SLIDING_WINDOW,
+                String.valueOf(limit), String.valueOf(windowSizeInMs), String.valueOf(buckets));
+    }
+
+    /**
+     * 令牌桶
+     * @param capacity 令牌桶容量
+     * @param refillTokensPerMs 每毫秒填充的令牌数
+     */
+    public static RedisRateLimitAlg tokenBucket(UnifiedJedis jedis, String key, long capacity, double refillTokensPerMs) {
+        checkPositive(capacity, "Capacity");
+        if (!(refillTokensPerMs > 0)) {
+            throw new IllegalArgumentException("Refill rate must be positive");
+        }
+        return new RedisRateLimitAlg(jedis, key, RedisRateLimitScripts.TOKEN_BUCKET,
+                String.valueOf(capacity), String.valueOf(refillTokensPerMs));
+    }
+
+    /**
+     * 漏桶
+     * @param capacity 漏桶容量
+     * @param leakIntervalNanos 漏出间隔（纳秒），不必是整毫秒
+     */
+    public static RedisRateLimitAlg leakyBucket(UnifiedJedis jedis, String key, int capacity, long leakIntervalNanos) {
+        checkPositive(capacity, "Capacity");
+        checkPositive(leakIntervalNanos, "Leak interval");
+        return new RedisRateLimitAlg(jedis, key, RedisRateLimitScripts.LEAKY_BUCKET,
+                String.valueOf(capacity), String.valueOf(leakIntervalNanos));
+    }
+
+    @Override
+    public boolean tryAcquire() throws InternalErrorException {
+        return tryAcquire(1);
+    }
+
+    /**
+     * 尝试一次性获取多个许可
+     * @param permits 许可数
+     * @return 是否获取成功
+     * @throws InternalErrorException 访问Redis失败时抛出
+     */
+    @Override
+    public boolean tryAcquire(int permits) throws InternalErrorException {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive");
+        }
+        List<String> scriptArgs = scriptArgs(permits);
+        Object result;
+        try {
+            result = script.eval(jedis, keys, scriptArgs);
+        } catch (JedisException e) {
+            log.error("Failed to execute rate limit script, key: {}", keys.get(0), e);
+            throw new InternalErrorException("Failed to execute rate limit script on redis", e);
+        }
+        return applyResult(result);
+    }
+
+    /**
+     * 批量检查多个计数器，使用同一Redis客户端的检查合并为pipeline执行
+     * @param counters 计数器
+     * @param permits 每个计数器对应的许可数，与counters按下标一一对应
+     * @return 每个检查是否放行，与counters按下标一一对应
+     * @throws InternalErrorException 访问Redis失败时抛出
+     */
+    public static boolean[] tryAcquireAll(List<RedisRateLimitAlg> counters, int[] permits) throws InternalErrorException {
+        if (counters.size() != permits.length) {
+            throw new IllegalArgumentException("Counters and permits must have the same size");
+        }
+        for (int p : permits) {
+            if (p <= 0) {
+                throw new IllegalArgumentException("Permits must be positive");
+            }
+        }
+        boolean[] results = new boolean[counters.size()];
+        Map<UnifiedJedis, List<Integer>> byClient = new IdentityHashMap<>();
+        for (int i = 0; i < counters.size(); i++) {
+            byClient.computeIfAbsent(counters.get(i).jedis, k -> new ArrayList<>()).add(i);
+        }
+        // 每个节点一个pipeline任务，各节点之间并行
+        List<Runnable> tasks = new ArrayList<>();
+        try {
+            for (Map.Entry<UnifiedJedis, List<Integer>> entry : byClient.entrySet()) {
+                UnifiedJedis jedis = entry.getKey();
+                if (jedis instanceof JedisCluster) {
+                    JedisCluster cluster = (JedisCluster) jedis;
+                    String[] owners = RedisClusterSupport.slotOwners(cluster);
+                    Map<String, List<Integer>> byNode = new LinkedHashMap<>();
+                    for (int index : entry.getValue()) {
+                        int slot = JedisClusterCRC16.getSlot(counters.get(index).keys.get(0));
+                        byNode.computeIfAbsent(owners[slot], k -> new ArrayList<>()).add(index);
+                    }
+                    Map<String, ConnectionPool> nodes = cluster.getClusterNodes();
+                    for (Map.Entry<String, List<Integer>> nodeEntry : byNode.entrySet()) {
+                        ConnectionPool pool = nodes.get(nodeEntry.getKey());
+                        tasks.add(() -> pipelined(pool, cluster, counters, permits, nodeEntry.getValue(), results));
+                    }
+                } else if (jedis instanceof JedisPooled) {
+                    Pool<Connection> pool = ((JedisPooled) jedis).getPool();
+                    tasks.add(() -> pipelined(pool, null, counters, permits, entry.getValue(), results));
+                } else {
+                    for (int index : entry.getValue()) {
+                        results[index] = counters.get(index).tryAcquire(permits[index]);
+                    }
+                }
+            }
+            RedisClusterSupport.runInParallel(PipelineExecutorHolder.EXECUTOR, tasks);
+        } catch (JedisException e) {
+            log.error("Failed to execute rate limit scripts in pipeline, batch size: {}", counters.size(), e);
+            throw new InternalErrorException("Failed to execute rate limit scripts on redis", e);
+        }
+        return results;
+    }
+
+    /**
+     * 在一个节点上以pipeline执行一组检查
+     * @param cluster 所在集群，单机Redis时为null
+     */
+    private static void pipelined(Pool<Connection> pool, JedisCluster cluster, List<RedisRateLimitAlg> counters,
+                                  int[] permits, List<Integer> indexes, boolean[] results) {
+        if (pool == null) {
+            // 映射表中的节点已不在JedisCluster的节点列表中，映射表已过期，逐个检查
+            RedisClusterSupport.invalidateSlotOwners(cluster);
+            for (int index : indexes) {
+                results[index] = counters.get(index).tryAcquire(permits[index]);
+            }
+            return;
+        }
+        List<Response<Object>> responses = new ArrayList<>(indexes.size());
+        List<List<String>> argsList = new ArrayList<>(indexes.size());
+        try (Connection connection = pool.getResource()) {
+            Pipeline pipeline = new Pipeline(connection);
+            for (int index : indexes) {
+                RedisRateLimitAlg counter = counters.get(index);
+                List<String> scriptArgs = counter.scriptArgs(permits[index]);
+                argsList.add(scriptArgs);
+                responses.add(pipeline.evalsha(counter.script.getSha(), counter.keys, scriptArgs));
+            }
+            pipeline.sync();
+        }
+        for (int i = 0; i < indexes.size(); i++) {
+            RedisRateLimitAlg counter = counters.get(indexes.get(i));
+            Object result;
+            try {
+                result = responses.get(i).get();
+            } catch (JedisNoScriptException e) {
+                // 脚本未缓存在该节点上，单独EVAL一次并缓存脚本，之后的批次即可走EVALSHA
+                result = counter.script.eval(counter.jedis, counter.keys, argsList.get(i));
+            } catch (JedisRedirectionException e) {
+                // slot已迁移，通过JedisCluster单独执行，由其跟随MOVED/ASK重定向
+                if (cluster != null) {
+                    RedisClusterSupport.invalidateSlotOwners(cluster);
+                }
+                result = counter.script.eval(counter.jedis, counter.keys, argsList.get(i));
+            }
+            results[indexes.get(i)] = counter.applyResult(result);
+        }
+    }
+
+    /**
+     * 所有批量检查共用的pipeline线程池，线程数与队列均有上限，队列满时由提交线程自己执行
+     */
+    private static final class PipelineExecutorHolder {
+        static final ExecutorService EXECUTOR = RedisClusterSupport.newPipelineExecutor(
+                "ratelimiter-redis-pipeline-%d", PIPELINE_THREADS, PIPELINE_QUEUE_PER_THREAD);
+    }
+
+    private List<String> scriptArgs(int permits) {
+        List<String> scriptArgs = new ArrayList<>(args.size() + 1);
+        scriptArgs.addAll(args);
+        scriptArgs.add(String.valueOf(permits));
+        return scriptArgs;
+    }
+
+    @Override
+    public int getCurrentCount() {
+        return lastCount;
+    }
+
+    @Override
+    public long getTimeToNextWindow() {
+        return lastWaitInMs;
+    }
+
+    /**
+     * 计数状态全部保存在Redis中，本地对象随时可以丢弃重建
+     */
+    @Override
+    public boolean isIdle() {
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean applyResult(Object result) {
+        List<Long> values = (List<Long>) result;
+        lastCount = (int) Math.min(Integer.MAX_VALUE, values.get(1));
+        lastWaitInMs = Math.max(0, values.get(2));
+        return values.get(0) == 1L;
+    }
+
+    private static void checkPositive(long value, String name) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive");
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.geektime.ratelimiter.alg.redis;
+
+/**
+ * @Description: 分布式限流使用的Lua脚本
+ * 每个脚本都只操作KEYS[1]一个Hash，一次检查就是一次原子的脚本执行。
+ * 时间统一取自Redis服务端的TIME命令，避免各实例之间的时钟偏差。
+ * 所有脚本返回 {是否放行(1/0), 当前计数, 建议等待毫秒数}。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:06
+ **/
+final class RedisRateLimitScripts {
+
+    private static final String NOW_MS = """
+            if redis.replicate_commands then redis.replicate_commands() end
+            local t = redis.call('TIME')
+            local now = tonumber(t[1]) * 1000 + tonumber(t[2]) / 1000
+            """;
+
+    private static final String NOW_US = """
+            if redis.replicate_commands then redis.replicate_commands() end
+            local t = redis.call('TIME')
+            local now = tonumber(t[1]) * 1000000 + tonumber(t[2])
+            """;
+
+    /**
+     * 固定窗口：字段w为窗口序号，c为窗口内计数
+     * ARGV: limit, windowSizeInMs, permits
+     */
+    static final RedisScript FIXED_WINDOW = new RedisScript(NOW_MS + """
+            local limit = tonumber(ARGV[1])
+            local window = tonumber(ARGV[2])
+            local permits = tonumber(ARGV[3])
+            local current = math.floor(now / window)
+            local state = redis.call('HMGET', KEYS[1], 'w', 'c')
+            local count = 0
+            if tonumber(state[1]) == current then
+                count = tonumber(state[2]) or 0
+            end
+            local ttl = math.ceil((current + 1) * window - now)
+            if count + permits > limit then
+                return {0, count, ttl}
+            end
+            redis.call('HSET', KEYS[1], 'w', current, 'c', count + permits)
+            redis.call('PEXPIRE', KEYS[1], ttl)
+            return {1, count + permits, 0}
+            """);
+
+    /**
+     * 滑动窗口计数器：字段为子窗口序号，值为该子窗口内计数，过期子窗口在执行时顺带删除
+     * ARGV: limit, windowSizeInMs, buckets, permits
+     */
+    static final RedisScript SLIDING_WINDOW = new RedisScript(NOW_MS + """
+            local limit = tonumber(ARGV[1])
+            local window = tonumber(ARGV[2])
+            local buckets = tonumber(ARGV[3])
+            local permits = tonumber(ARGV[4])
+            local sub = math.max(1, math.floor(window / buckets))
+            local current = math.floor(now / sub)
+            local oldestValid = current - buckets + 1
+            local fields = redis.call('HGETALL', KEYS[1])
+            local total = 0
+            local oldest = current
+            for i = 1, #fields, 2 do
+                local index = tonumber(fields[i])
+                if index < oldestValid then
+                    redis.call('HDEL', KEYS[1], fields[i])
+                else
+                    total = total + tonumber(fields[i + 1])
+                    if index < oldest then
+                        oldest = index
+                    end
+                end
+            end
+            if total + permits > limit then
+                return {0, total, math.ceil((oldest + buckets) * sub - now)}
+            end
+            redis.call('HINCRBY', KEYS[1], current, permits)
+            redis.call('PEXPIRE', KEYS[1], buckets * sub + sub)
+            return {1, total + permits, 0}
+            """);
+
+    /**
+     * 令牌桶：字段t为剩余令牌数（可为小数），ts为上次填充时间（毫秒，可为小数）
+     * ARGV: capacity, refillTokensPerMs, permits
+     */
+    static final RedisScript TOKEN_BUCKET = new RedisScript(NOW_MS + """
+            local capacity = tonumber(ARGV[1])
+            local rate = tonumber(ARGV[2])
+            local permits = tonumber(ARGV[3])
+            local state = redis.call('HMGET', KEYS[1], 't', 'ts')
+            local tokens = tonumber(state[1])
+            local last = tonumber(state[2])
+            if tokens == nil or last == nil then
+                tokens = capacity
+                last = now
+            end
+            tokens = math.min(capacity, tokens + math.max(0, now - last) * rate)
+            local allowed = 0
+            local wait = 0
+            if tokens >= permits then
+                tokens = tokens - permits
+                allowed = 1
+            else
+                wait = math.ceil((permits - tokens) / rate)
+            end
+            redis.call('HSET', KEYS[1], 't', tostring(tokens), 'ts', tostring(now))
+            redis.call('PEXPIRE', KEYS[1], math.ceil(capacity / rate) + 1000)
+            return {allowed, math.floor(capacity - tokens), wait}
+            """);
+
+    /**
+     * 漏桶（GCRA）：字段tu为理论到达时间（微秒，可为小数）
+     * 漏出间隔按纳秒传入、按微秒计算，不取整到毫秒，每秒超过1000个请求的规则也按配置的速率放行；
+     * 微秒级时间戳超过%.14g的有效位数，写回时按%.17g格式化以免丢失精度
+     * ARGV: capacity, leakIntervalNanos, permits
+     */
+    static final RedisScript LEAKY_BUCKET = new RedisScript(NOW_US + """
+            local capacity = tonumber(ARGV[1])
+            local interval = tonumber(ARGV[2]) / 1000
+            local permits = tonumber(ARGV[3])
+            local tat = tonumber(redis.call('HGET', KEYS[1], 'tu')) or now
+            local base = math.max(tat, now)
+            local newTat = base + permits * interval
+            if newTat - now > capacity * interval then
+                return {0, math.ceil((tat - now) / interval), math.ceil((tat - now - (capacity - 1) * interval) / 1000)}
+            end
+            redis.call('HSET', KEYS[1], 'tu', string.format('%.17g', newTat))
+            redis.call('PEXPIRE', KEYS[1], math.ceil((newTat - now) / 1000) + 1000)
+            return {1, math.ceil((newTat - now) / interval), 0}
+            """);
+
+    /**
+     * 固定窗口额度租约：与FIXED_WINDOW共用同一种存储格式，一次从窗口剩余额度中最多领取requested个许可
+     * ARGV: limit, windowSizeInMs, requested
+     * 返回 {实际领取的许可数, 窗口序号, 窗口剩余毫秒数}
+     */
+    static final RedisScript LEASE = new RedisScript(NOW_MS + """
+            local limit = tonumber(ARGV[1])
+            local window = tonumber(ARGV[2])
+            local requested = tonumber(ARGV[3])
+            local current = math.floor(now / window)
+            local state = redis.call('HMGET', KEYS[1], 'w', 'c')
+            local count = 0
+            if tonumber(state[1]) == current then
+                count = tonumber(state[2]) or 0
+            end
+            local ttl = math.ceil((current + 1) * window - now)
+            local granted = math.max(0, math.min(requested, limit - count))
+            if granted > 0 then
+                redis.call('HSET', KEYS[1], 'w', current, 'c', count + granted)
+                redis.call('PEXPIRE', KEYS[1], ttl)
+            end
+            return {granted, current, ttl}
+            """);
+
+    private RedisRateLimitScripts() {
+    }
+}
@@ -0,0 +1,51 @@
+package com.geektime.ratelimiter.alg.redis;
+
+import redis.clients.jedis.UnifiedJedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * @Description: Lua脚本及其SHA1，优先EVALSHA执行，脚本未缓存时回退为EVAL
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:06
+ **/
+final class RedisScript {
+    private final String script;
+    private final String sha;
+
+    RedisScript(String script) {
+        this.script = script;
+        this.sha = sha1(script);
+    }
+
+    String getScript() {
+        return script;
+    }
+
+    String getSha() {
+        return sha;
+    }
+
+    Object eval(UnifiedJedis jedis, List<String> keys, List<String> args) {
+        try {
+            return jedis.evalsha(sha, keys, args);
+        } catch (JedisNoScriptException e) {
+            // 脚本尚未缓存在该节点上（首次执行、主从切换或SCRIPT FLUSH），EVAL会顺带缓存脚本
+            return jedis.eval(script, keys, args);
+        }
+    }
+
+    private static String sha1(String script) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return HexFormat.of().formatHex(digest.digest(script.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * 基于Redis的分布式限流算法实现
+ */
+package com.geektime.ratelimiter.alg.redis;
@@ -0,0 +1,172 @@
+package com.geektime.ratelimiter.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Description: 对数线性分桶的耗时直方图，思路同HdrHistogram
+ * 数值（纳秒）按最高位所在的2的幂分段，每段再等分为32个子桶，相对误差不超过1/32（约3%），
+ * 覆盖1ns到约18分钟，共约1200个桶，记录时只需几次位运算和一次原子累加，不分配对象。
+ * 为避免多线程争用同一个热点桶，计数按线程分散到多个分段上，读取快照时再合并。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:08
+ **/
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // 超过2^40纳秒（约18分钟）的值计入最后一个桶
+    private static final int MAX_VALUE_BITS = 40;
+    private static final long MAX_TRACKABLE_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    static final int BUCKET_COUNT = indexOf(MAX_TRACKABLE_VALUE) + 1;
+    private static final int MAX_STRIPES = 16;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripeCount = Math.min(MAX_STRIPES, processors == 1 ? 1 : Integer.highestOneBit(processors - 1) << 1);
+        this.stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new AtomicLongArray(BUCKET_COUNT);
+        }
+        this.stripeMask = stripeCount - 1;
+    }
+
+    /**
+     * 记录一次耗时
+     * @param valueNanos 耗时（纳秒），负数按0记录
+     */
+    public void record(long valueNanos) {
+        long value = Math.max(0, Math.min(valueNanos, MAX_TRACKABLE_VALUE));
+        stripes[probe() & stripeMask].incrementAndGet(indexOf(value));
+        sum.add(value);
+    }
+
+    /**
+     * 合并各分段得到当前快照，与并发的record之间不保证原子性
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return new Snapshot(counts, sum.sum());
+    }
+
+    /**
+     * 小于32的值每个值一个桶；之后每个2的幂区间[2^e, 2^(e+1))分为32个等宽子桶
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    static long lowestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        return (long) (SUB_BUCKET_COUNT + (index & (SUB_BUCKET_COUNT - 1))) << shift;
+    }
+
+    static long highestValueAt(int index) {
+        return index + 1 < BUCKET_COUNT ? lowestValueAt(index + 1) - 1 : MAX_TRACKABLE_VALUE;
+    }
+
+    private static int probe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    /**
+     * 直方图的只读快照，数值单位为纳秒
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long totalCount;
+        private final long sumNanos;
+
+        Snapshot(long[] counts, long sumNanos) {
+            this.counts = counts;
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            this.totalCount = total;
+            this.sumNanos = sumNanos;
+        }
+
+        public long getCount() {
+            return totalCount;
+        }
+
+        public long getSumNanos() {
+            return sumNanos;
+        }
+
+        public double getMeanNanos() {
+            return totalCount == 0 ? 0 : (double) sumNanos / totalCount;
+        }
+
+        /**
+         * @param percentile 百分位，取值[0, 100]
+         * @return 该百分位所在桶的上界（纳秒），没有记录时返回0
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (totalCount == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * totalCount));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return highestValueAt(i);
+                }
+            }
+            return highestValueAt(counts.length - 1);
+        }
+
+        /**
+         * @return 最大值所在桶的上界（纳秒），没有记录时返回0
+         */
+        public long getMaxNanos() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return highestValueAt(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * 不超过给定值的记录数，用于输出累积分桶；给定值落在某个桶内部时，整个桶按上界判断不计入
+         * @param valueNanos 上界（纳秒）
+         */
+        public long getCountAtOrBelow(long valueNanos) {
+            long count = 0;
+            for (int i = 0; i < counts.length && highestValueAt(i) <= valueNanos; i++) {
+                count += counts[i];
+            }
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{count=" + totalCount
+                    + ", mean=" + Math.round(getMeanNanos()) + "ns"
+                    + ", p50=" + getValueAtPercentile(50) + "ns"
+                    + ", p99=" + getValueAtPercentile(99) + "ns"
+                    + ", p999=" + getValueAtPercentile(99.9) + "ns"
+                    + ", max=" + TimeUnit.NANOSECONDS.toMicros(getMaxNanos()) + "us}";
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.geektime.ratelimiter.metrics;
+
+import com.geektime.ratelimiter.CounterStore;
+import com.geektime.ratelimiter.alg.KeyedCounterTable;
+import com.geektime.ratelimiter.alg.RateLimitAlg;
+import com.geektime.ratelimiter.rule.ApiLimit;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Description: 限流器的指标收集入口
+ * 按规则统计放行/拒绝次数（RuleMetrics，预绑定在ApiLimit上），统计未命中规则的请求数，
+ * 并用一个全局的LatencyHistogram记录每次限流判定的耗时。热路径上只有LongAdder累加与直方图的一次原子累加。
+ * 判定耗时覆盖limit、acquire、acquireAsync与limitBatch：acquire与acquireAsync按每次尝试记录，不含等待许可的时间；
+ * limitBatch中合并为pipeline的各项按整批的耗时记录。
+ * 指标以拉取方式读取：snapshot()遍历当前生效的规则生成快照，同时读取各规则计数器的当前计数计算利用率。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:08
+ **/
+public class LimiterMetrics {
+    private final LatencyHistogram decisionLatency = new LatencyHistogram();
+    private final LongAdder unmatched = new LongAdder();
+
+    /**
+     * 获取规则的指标，尚未绑定时创建并绑定到规则上
+     */
+    public RuleMetrics of(ApiLimit apiLimit) {
+        RuleMetrics ruleMetrics = apiLimit.metrics();
+        if (ruleMetrics == null) {
+            ruleMetrics = apiLimit.bindMetrics(new RuleMetrics());
+        }
+        return ruleMetrics;
+    }
+
+    /**
+     * 记录一次命中规则的判定结果
+     * @param apiLimit 命中的规则
+     * @param admitted 是否放行
+     */
+    public void recordDecision(ApiLimit apiLimit, boolean admitted) {
+        RuleMetrics ruleMetrics = of(apiLimit);
+        if (admitted) {
+            ruleMetrics.recordAdmitted();
+        } else {
+            ruleMetrics.recordRejected();
+        }
+    }
+
+    /**
+     * 记录一次未命中任何规则的请求
+     */
+    public void recordUnmatched() {
+        unmatched.increment();
+    }
+
+    /**
+     * 记录一次判定的耗时
+     * @param startNanos 判定开始时的System.nanoTime()
+     */
+    public void recordLatency(long startNanos) {
+        decisionLatency.record(System.nanoTime() - startNanos);
+    }
+
+    public long getUnmatchedCount() {
+        return unmatched.sum();
+    }
+
+    public LatencyHistogram getDecisionLatency() {
+        return decisionLatency;
+    }
+
+    /**
+     * 生成指标快照
+     * @param rules 当前生效的规则
+     * @param counterStats 计数器存储的统计
+     * @param keyedCounterTable 维度限流的共享计数表，未使用维度限流时为null
+     */
+    public MetricsSnapshot snapshot(Collection<ApiLimit> rules, CounterStore.Stats counterStats,
+                                    KeyedCounterTable keyedCounterTable) {
+        List<MetricsSnapshot.RuleSnapshot> ruleSnapshots = new ArrayList<>(rules.size());
+        for (ApiLimit apiLimit : rules) {
+            RuleMetrics ruleMetrics = apiLimit.metrics();
+            RateLimitAlg counter = apiLimit.counter();
+            // 维度规则的计数分散在各维度值上，没有整体利用率
+            double utilization = counter == null || apiLimit.isDimensional() || apiLimit.getLimit() <= 0
+                    ? Double.NaN : (double) counter.getCurrentCount() / apiLimit.getLimit();
+            ruleSnapshots.add(new MetricsSnapshot.RuleSnapshot(apiLimit,
+                    ruleMetrics == null ? 0 : ruleMetrics.getAdmittedCount(),
+                    ruleMetrics == null ? 0 : ruleMetrics.getRejectedCount(),
+                    utilization));
+        }
+        return new MetricsSnapshot(ruleSnapshots, unmatched.sum(), decisionLatency.snapshot(), counterStats,
+                keyedCounterTable == null ? 0 : keyedCounterTable.size(),
+                keyedCounterTable == null ? 0 : keyedCounterTable.getOverflowCount());
+    }
+}
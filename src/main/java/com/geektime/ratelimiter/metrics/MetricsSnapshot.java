@@ -0,0 +1,145 @@
+package com.geektime.ratelimiter.metrics;
+
+import com.geektime.ratelimiter.CounterStore;
+import com.geektime.ratelimiter.alg.RateLimitAlgType;
+import com.geektime.ratelimiter.rule.ApiLimit;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @Description: 限流器指标的只读快照
+ * 放行/拒绝次数为规则生效以来的累计值；利用率为规则计数器的当前计数与limit之比，
+ * 计数器尚未创建或规则配置了维度时为NaN。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:08
+ **/
+public final class MetricsSnapshot {
+    private final List<RuleSnapshot> rules;
+    private final long unmatchedCount;
+    private final LatencyHistogram.Snapshot decisionLatency;
+    private final CounterStore.Stats counterStats;
+    private final int keyedCounterSize;
+    private final long keyedCounterOverflows;
+
+    public MetricsSnapshot(List<RuleSnapshot> rules, long unmatchedCount, LatencyHistogram.Snapshot decisionLatency,
+                           CounterStore.Stats counterStats, int keyedCounterSize, long keyedCounterOverflows) {
+        this.rules = Collections.unmodifiableList(rules);
+        this.unmatchedCount = unmatchedCount;
+        this.decisionLatency = decisionLatency;
+        this.counterStats = counterStats;
+        this.keyedCounterSize = keyedCounterSize;
+        this.keyedCounterOverflows = keyedCounterOverflows;
+    }
+
+    public List<RuleSnapshot> getRules() {
+        return rules;
+    }
+
+    public long getAdmittedCount() {
+        long total = 0;
+        for (RuleSnapshot rule : rules) {
+            total += rule.getAdmittedCount();
+        }
+        return total;
+    }
+
+    public long getRejectedCount() {
+        long total = 0;
+        for (RuleSnapshot rule : rules) {
+            total += rule.getRejectedCount();
+        }
+        return total;
+    }
+
+    public long getUnmatchedCount() {
+        return unmatchedCount;
+    }
+
+    public LatencyHistogram.Snapshot getDecisionLatency() {
+        return decisionLatency;
+    }
+
+    /**
+     * @return 计数器存储的统计，包括计数器数量（counter-map大小）与淘汰次数
+     */
+    public CounterStore.Stats getCounterStats() {
+        return counterStats;
+    }
+
+    /**
+     * @return 维度限流计数表已占用的槽位数
+     */
+    public int getKeyedCounterSize() {
+        return keyedCounterSize;
+    }
+
+    public long getKeyedCounterOverflows() {
+        return keyedCounterOverflows;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{rules=" + rules.size() + ", admitted=" + getAdmittedCount()
+                + ", rejected=" + getRejectedCount() + ", unmatched=" + unmatchedCount
+                + ", decisionLatency=" + decisionLatency + ", counters=" + counterStats
+                + ", keyedCounters=" + keyedCounterSize + "}";
+    }
+
+    /**
+     * 单条规则的指标
+     */
+    public static final class RuleSnapshot {
+        private final String appId;
+        private final String api;
+        private final RateLimitAlgType algorithm;
+        private final int limit;
+        private final long admittedCount;
+        private final long rejectedCount;
+        private final double utilization;
+
+        RuleSnapshot(ApiLimit apiLimit, long admittedCount, long rejectedCount, double utilization) {
+            this.appId = apiLimit.getAppId();
+            this.api = apiLimit.getApi();
+            this.algorithm = apiLimit.getAlgorithm() == null ? RateLimitAlgType.FIXED_WINDOW : apiLimit.getAlgorithm();
+            this.limit = apiLimit.getLimit();
+            this.admittedCount = admittedCount;
+            this.rejectedCount = rejectedCount;
+            this.utilization = utilization;
+        }
+
+        public String getAppId() {
+            return appId;
+        }
+
+        public String getApi() {
+            return api;
+        }
+
+        public RateLimitAlgType getAlgorithm() {
+            return algorithm;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        public long getAdmittedCount() {
+            return admittedCount;
+        }
+
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        public double getUtilization() {
+            return utilization;
+        }
+
+        @Override
+        public String toString() {
+            return "RuleSnapshot{appId='" + appId + "', api='" + api + "', algorithm=" + algorithm
+                    + ", admitted=" + admittedCount + ", rejected=" + rejectedCount + ", utilization=" + utilization + "}";
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.geektime.ratelimiter.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * @Description: 以Prometheus文本格式（0.0.4）暴露限流指标的HTTP端点，可选组件
+ * 基于JDK自带的HttpServer，不引入额外依赖；默认只监听本机回环地址，路径为/metrics。
+ * 每次抓取时从快照来源拉取一次MetricsSnapshot再渲染，不做额外缓存。
+ * 每条规则输出放行、拒绝两条计数与一条利用率，规则数很多时抓取结果也相应变大。
+ *
+ * 使用示例：
+ * PrometheusExporter exporter = new PrometheusExporter(rateLimiter::getMetrics, 9464);
+ * exporter.start();
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:08
+ **/
+public class PrometheusExporter implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(PrometheusExporter.class);
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String PATH = "/metrics";
+    // 判定耗时直方图的累积分桶上界（秒）
+    private static final double[] LATENCY_BUCKETS = {
+            1e-7, 2.5e-7, 5e-7, 1e-6, 2.5e-6, 5e-6, 1e-5, 2.5e-5, 5e-5, 1e-4, 2.5e-4, 5e-4, 1e-3, 1e-2, 1e-1, 1};
+
+    private final Supplier<MetricsSnapshot> snapshotSupplier;
+    private final InetSocketAddress address;
+    private HttpServer server;
+
+    /**
+     * 监听本机回环地址的指定端口
+     * @param snapshotSupplier 指标快照来源，通常为rateLimiter::getMetrics
+     * @param port 端口，为0时随机分配
+     */
+    public PrometheusExporter(Supplier<MetricsSnapshot> snapshotSupplier, int port) {
+        this(snapshotSupplier, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public PrometheusExporter(Supplier<MetricsSnapshot> snapshotSupplier, InetSocketAddress address) {
+        if (snapshotSupplier == null) {
+            throw new IllegalArgumentException("Snapshot supplier must not be null");
+        }
+        this.snapshotSupplier = snapshotSupplier;
+        this.address = address;
+    }
+
+    /**
+     * 启动HTTP服务
+     * @throws IOException 端口绑定失败时抛出
+     */
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        HttpServer httpServer = HttpServer.create(address, 0);
+        httpServer.createContext(PATH, this::handle);
+        httpServer.start();
+        server = httpServer;
+        log.info("Started prometheus exporter on http://{}:{}{}",
+                address.getHostString(), httpServer.getAddress().getPort(), PATH);
+    }
+
+    /**
+     * @return 实际监听的端口，未启动时返回-1
+     */
+    public synchronized int getPort() {
+        return server == null ? -1 : server.getAddress().getPort();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render(snapshotSupplier.get()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to render rate limiter metrics", e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * 把快照渲染为Prometheus文本格式
+     */
+    public static String render(MetricsSnapshot snapshot) {
+        StringBuilder sb = new StringBuilder(4096);
+        header(sb, "ratelimiter_requests_total", "counter", "Rate limit decisions by rule and result.");
+        for (MetricsSnapshot.RuleSnapshot rule : snapshot.getRules()) {
+            sample(sb, "ratelimiter_requests_total", rule, "admitted", rule.getAdmittedCount());
+            sample(sb, "ratelimiter_requests_total", rule, "rejected", rule.getRejectedCount());
+        }
+        header(sb, "ratelimiter_rule_utilization", "gauge", "Current count of the rule counter divided by its limit.");
+        for (MetricsSnapshot.RuleSnapshot rule : snapshot.getRules()) {
+            if (!Double.isNaN(rule.getUtilization())) {
+                sample(sb, "ratelimiter_rule_utilization", rule, null, rule.getUtilization());
+            }
+        }
+        header(sb, "ratelimiter_unmatched_requests_total", "counter", "Requests that matched no rate limit rule.");
+        sb.append("ratelimiter_unmatched_requests_total ").append(snapshot.getUnmatchedCount()).append('\n');
+
+        LatencyHistogram.Snapshot latency = snapshot.getDecisionLatency();
+        header(sb, "ratelimiter_decision_latency_seconds", "histogram", "Latency of rate limit decisions, excluding time spent waiting for permits.");
+        for (double bucket : LATENCY_BUCKETS) {
+            sb.append("ratelimiter_decision_latency_seconds_bucket{le=\"").append(bucket).append("\"} ")
+                    .append(latency.getCountAtOrBelow((long) (bucket * 1e9))).append('\n');
+        }
+        sb.append("ratelimiter_decision_latency_seconds_bucket{le=\"+Inf\"} ").append(latency.getCount()).append('\n');
+        sb.append("ratelimiter_decision_latency_seconds_sum ").append(latency.getSumNanos() / 1e9).append('\n');
+        sb.append("ratelimiter_decision_latency_seconds_count ").append(latency.getCount()).append('\n');
+
+        if (snapshot.getCounterStats() != null) {
+            header(sb, "ratelimiter_counters", "gauge", "Rate limit counters currently held in memory.");
+            sb.append("ratelimiter_counters ").append(snapshot.getCounterStats().getSize()).append('\n');
+            header(sb, "ratelimiter_counter_evictions_total", "counter", "Rate limit counters evicted by reason.");
+            sb.append("ratelimiter_counter_evictions_total{reason=\"idle\"} ")
+                    .append(snapshot.getCounterStats().getIdleEvictionCount()).append('\n');
+            sb.append("ratelimiter_counter_evictions_total{reason=\"size\"} ")
+                    .append(snapshot.getCounterStats().getSizeEvictionCount()).append('\n');
+        }
+        header(sb, "ratelimiter_keyed_counters", "gauge", "Occupied slots of the per-dimension counter table.");
+        sb.append("ratelimiter_keyed_counters ").append(snapshot.getKeyedCounterSize()).append('\n');
+        header(sb, "ratelimiter_keyed_counter_overflows_total", "counter",
+                "Requests for new dimension values that found the per-dimension counter table full, handled by its overflow policy.");
+        sb.append("ratelimiter_keyed_counter_overflows_total ").append(snapshot.getKeyedCounterOverflows()).append('\n');
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, MetricsSnapshot.RuleSnapshot rule, String result,
+                               double value) {
+        sb.append(name).append("{app_id=\"");
+        escape(sb, rule.getAppId());
+        sb.append("\",api=\"");
+        escape(sb, rule.getApi());
+        sb.append("\",algorithm=\"").append(rule.getAlgorithm().name());
+        if (result != null) {
+            sb.append("\",result=\"").append(result);
+        }
+        sb.append("\"} ");
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    /**
+     * 标签值中的反斜杠、双引号与换行需要转义
+     */
+    private static void escape(StringBuilder sb, String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+}
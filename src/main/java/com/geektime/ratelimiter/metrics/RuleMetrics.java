@@ -0,0 +1,31 @@
+package com.geektime.ratelimiter.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Description: 单条限流规则的放行/拒绝计数
+ * 预绑定在规则（ApiLimit）上，请求热路径只做一次LongAdder累加；计数从规则对象创建起单调递增，
+ * 规则被修改后对应新的规则对象，计数从0开始。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:08
+ **/
+public final class RuleMetrics {
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public void recordAdmitted() {
+        admitted.increment();
+    }
+
+    public void recordRejected() {
+        rejected.increment();
+    }
+
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,11 @@
+/**
+ * 限流指标相关类
+ *
+ * 包含以下主要类：
+ * - LimiterMetrics: 限流器的指标收集入口，记录放行/拒绝次数与判定耗时
+ * - RuleMetrics: 单条规则的放行/拒绝计数，预绑定在规则上
+ * - LatencyHistogram: 对数线性分桶的耗时直方图（HDR风格）
+ * - MetricsSnapshot: 拉取式的指标快照
+ * - PrometheusExporter: 以Prometheus文本格式在本地HTTP端口暴露指标（可选）
+ */
+package com.geektime.ratelimiter.metrics;
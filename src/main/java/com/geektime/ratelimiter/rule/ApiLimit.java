@@ -1,5 +1,12 @@
 package com.geektime.ratelimiter.rule;
 
+import com.geektime.ratelimiter.alg.RateLimitAlg;
+import com.geektime.ratelimiter.alg.RateLimitAlgType;
+import com.geektime.ratelimiter.metrics.RuleMetrics;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 /**
  * @Description: API限流规则配置类
  * 该类定义了单个API的限流规则，包含以下属性：
@@ -7,18 +14,58 @@ package com.geektime.ratelimiter.rule;
  * - api: API路径，用于标识具体的接口
  * - limit: 时间窗口内允许的最大请求数
  * - unit: 时间窗口大小，以秒为单位
+ * - algorithm: 限流算法，默认为固定时间窗口
+ * - burstCapacity: 令牌桶/漏桶容量，即允许的最大突发请求数，默认为limit
+ * - refillTokens、refillIntervalInMs: 令牌桶每refillIntervalInMs毫秒填充refillTokens个令牌，默认每unit秒填充limit个
+ * - leakIntervalInMs: 漏桶漏出间隔（毫秒），默认为unit*1000/limit，按纳秒精度推导而不取整
+ * - windowBuckets: 滑动窗口的子窗口个数（统计精度），默认为10
+ * - stripes: 固定窗口的计数分段数，大于1时对热点规则启用分段计数，默认不分段
+ * - distributed: 是否使用基于Redis的分布式计数，所有实例共享同一份限额，默认为单机计数
+ * - leaseTolerance: 分布式固定窗口规则的本地租约比例，取值(0, 1]，大于0时各实例按批领取额度后在本地扣减，默认每次请求访问Redis
+ * - dimension: 限流维度，如USER表示每个用户各自拥有limit的限额，默认为NONE即整个api共享限额
+ * 
+ * 规则命中后，RateLimiter会把该规则对应的限流计数器绑定到ApiLimit上，
+ * 之后的请求直接通过counter()取到计数器，热路径上不再拼接key、不再查Map。
+ * 规则的放行/拒绝计数（RuleMetrics）同样预绑定在规则上，供指标快照与拒绝日志汇总读取。
+ * equals/hashCode只比较规则配置字段，不包含已绑定的计数器；规则热更新时据此判断规则是否变化。
  * 
  * 使用示例：
  * ApiLimit limit = new ApiLimit("app1", "/api/v1/user", 100, 1); // 每秒限制100次请求
+ * ApiLimit bucket = new ApiLimit("app1", "/api/v1/order", 100, 1, RateLimitAlgType.TOKEN_BUCKET); // 令牌桶
  * 
  * @Author: dansheng
  * @CreateTime: 2025/2/6 17:03
  **/
 public class ApiLimit {
+    private static final AtomicReferenceFieldUpdater<ApiLimit, RateLimitAlg> COUNTER_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(ApiLimit.class, RateLimitAlg.class, "counter");
+    private static final AtomicReferenceFieldUpdater<ApiLimit, RuleMetrics> METRICS_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(ApiLimit.class, RuleMetrics.class, "metrics");
+
     private String appId;
     private String api;
     private int limit;
     private long unit; // 时间单位，以秒为单位
+    private RateLimitAlgType algorithm = RateLimitAlgType.FIXED_WINDOW;
+    private long burstCapacity;
+    private long refillTokens;
+    private long refillIntervalInMs;
+    private long leakIntervalInMs;
+    private int windowBuckets;
+    private int stripes;
+    private boolean distributed;
+    private double leaseTolerance;
+    private LimitDimension dimension = LimitDimension.NONE;
+    // 预绑定的限流计数器，不属于规则配置，不参与序列化
+    private volatile RateLimitAlg counter;
+    // 预绑定的规则指标，同样不属于规则配置
+    private volatile RuleMetrics metrics;
+
+    /**
+     * 供YAML/JSON解析器反序列化使用
+     */
+    public ApiLimit() {
+    }
 
     public ApiLimit(String appId, String api, int limit, long unit) {
         this.appId = appId;
@@ -27,6 +74,11 @@ public class ApiLimit {
         this.unit = unit;
     }
 
+    public ApiLimit(String appId, String api, int limit, long unit, RateLimitAlgType algorithm) {
+        this(appId, api, limit, unit);
+        this.algorithm = algorithm;
+    }
+
     public String getAppId() {
         return appId;
     }
@@ -58,4 +110,177 @@ public class ApiLimit {
     public void setUnit(long unit) {
         this.unit = unit;
     }
+
+    public RateLimitAlgType getAlgorithm() {
+        return algorithm;
+    }
+
+    public void setAlgorithm(RateLimitAlgType algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public long getBurstCapacity() {
+        return burstCapacity;
+    }
+
+    public void setBurstCapacity(long burstCapacity) {
+        this.burstCapacity = burstCapacity;
+    }
+
+    public long getRefillTokens() {
+        return refillTokens;
+    }
+
+    public void setRefillTokens(long refillTokens) {
+        this.refillTokens = refillTokens;
+    }
+
+    public long getRefillIntervalInMs() {
+        return refillIntervalInMs;
+    }
+
+    public void setRefillIntervalInMs(long refillIntervalInMs) {
+        this.refillIntervalInMs = refillIntervalInMs;
+    }
+
+    public long getLeakIntervalInMs() {
+        return leakIntervalInMs;
+    }
+
+    public void setLeakIntervalInMs(long leakIntervalInMs) {
+        this.leakIntervalInMs = leakIntervalInMs;
+    }
+
+    public int getWindowBuckets() {
+        return windowBuckets;
+    }
+
+    public void setWindowBuckets(int windowBuckets) {
+        this.windowBuckets = windowBuckets;
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    public boolean isDistributed() {
+        return distributed;
+    }
+
+    public void setDistributed(boolean distributed) {
+        this.distributed = distributed;
+    }
+
+    public double getLeaseTolerance() {
+        return leaseTolerance;
+    }
+
+    public void setLeaseTolerance(double leaseTolerance) {
+        this.leaseTolerance = leaseTolerance;
+    }
+
+    public LimitDimension getDimension() {
+        return dimension;
+    }
+
+    public void setDimension(LimitDimension dimension) {
+        this.dimension = dimension;
+    }
+
+    /**
+     * @return 是否按维度值分别计数
+     */
+    public boolean isDimensional() {
+        return dimension != null && dimension != LimitDimension.NONE;
+    }
+
+    /**
+     * 获取已绑定到该规则的限流计数器
+     * @return 限流计数器，尚未绑定时返回null
+     */
+    public RateLimitAlg counter() {
+        return counter;
+    }
+
+    /**
+     * 解除绑定的限流计数器，只有当前绑定的正是expected时才生效
+     * @param expected 期望解除绑定的限流计数器
+     * @return 是否解除成功
+     */
+    public boolean unbindCounter(RateLimitAlg expected) {
+        return COUNTER_UPDATER.compareAndSet(this, expected, null);
+    }
+
+    /**
+     * 绑定限流计数器，只有第一次绑定生效
+     * @param rateLimitAlg 待绑定的限流计数器
+     * @return 最终绑定在该规则上的限流计数器
+     */
+    public RateLimitAlg bindCounter(RateLimitAlg rateLimitAlg) {
+        if (COUNTER_UPDATER.compareAndSet(this, null, rateLimitAlg)) {
+            return rateLimitAlg;
+        }
+        return counter;
+    }
+
+    /**
+     * 获取已绑定到该规则的指标
+     * @return 规则指标，尚未绑定时返回null
+     */
+    public RuleMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * 绑定规则指标，只有第一次绑定生效，绑定后不再解除
+     * @param ruleMetrics 待绑定的规则指标
+     * @return 最终绑定在该规则上的规则指标
+     */
+    public RuleMetrics bindMetrics(RuleMetrics ruleMetrics) {
+        if (METRICS_UPDATER.compareAndSet(this, null, ruleMetrics)) {
+            return ruleMetrics;
+        }
+        return metrics;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        ApiLimit that = (ApiLimit) o;
+        return limit == that.limit
+                && unit == that.unit
+                && burstCapacity == that.burstCapacity
+                && refillTokens == that.refillTokens
+                && refillIntervalInMs == that.refillIntervalInMs
+                && leakIntervalInMs == that.leakIntervalInMs
+                && windowBuckets == that.windowBuckets
+                && stripes == that.stripes
+                && distributed == that.distributed
+                && Double.compare(leaseTolerance, that.leaseTolerance) == 0
+                && Objects.equals(appId, that.appId)
+                && Objects.equals(api, that.api)
+                && algorithm == that.algorithm
+                && dimension == that.dimension;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(appId, api, limit, unit, algorithm, burstCapacity, refillTokens,
+                refillIntervalInMs, leakIntervalInMs, windowBuckets, stripes, distributed, leaseTolerance, dimension);
+    }
+
+    @Override
+    public String toString() {
+        return "ApiLimit{appId='" + appId + "', api='" + api + "', limit=" + limit + ", unit=" + unit
+                + ", algorithm=" + algorithm + ", dimension=" + dimension + ", distributed=" + distributed + "}";
+    }
 }
@@ -0,0 +1,20 @@
+package com.geektime.ratelimiter.rule;
+
+/**
+ * @Description: 限流维度，决定同一条规则下的请求按什么分别计数
+ * - NONE: 不区分维度，整个appId + api共享一份限额（默认）
+ * - USER: 按用户ID分别计数
+ * - IP: 按客户端IP分别计数
+ * - TENANT: 按租户分别计数
+ * - CUSTOM: 按调用方自定义的维度值分别计数
+ * 除NONE外，维度值由调用方通过RateLimiter.limit(appId, url, limitKey)或LimitKeyExtractor提供。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:03
+ **/
+public enum LimitDimension {
+    NONE,
+    USER,
+    IP,
+    TENANT,
+    CUSTOM
+}
@@ -0,0 +1,142 @@
+package com.geektime.ratelimiter.rule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @Description: 两份规则配置之间的差异
+ * 以appId + api标识一条规则，对比新旧配置得到三类变更：
+ * - 新增：只在新配置中出现的规则
+ * - 删除：只在旧配置中出现的规则
+ * - 修改：两边都有但配置字段不同的规则（按ApiLimit.equals比较）
+ * 配置完全相同的规则不产生任何变更，其上已绑定的计数器得以保留。
+ * 同一appId + api在配置中重复出现时以最后一条为准，与TrieRateLimitRule的加载行为一致。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:04
+ **/
+public class RuleConfigDiff {
+    private final List<ApiLimit> added = new ArrayList<>();
+    private final List<ApiLimit> removed = new ArrayList<>();
+    // 修改前后的规则按下标一一对应
+    private final List<ApiLimit> modifiedFrom = new ArrayList<>();
+    private final List<ApiLimit> modifiedTo = new ArrayList<>();
+    // 应用变更后生效的规则，配置未变化的规则保留旧对象
+    private final List<ApiLimit> resultLimits = new ArrayList<>();
+
+    private RuleConfigDiff() {
+    }
+
+    /**
+     * 计算从旧配置到新配置的差异
+     * @param oldConfig 当前生效的规则配置，可以为null
+     * @param newConfig 新的规则配置，可以为null
+     * @return 规则差异
+     */
+    public static RuleConfigDiff between(RuleConfig oldConfig, RuleConfig newConfig) {
+        RuleConfigDiff diff = new RuleConfigDiff();
+        Map<String, ApiLimit> oldLimits = index(oldConfig);
+        Map<String, ApiLimit> newLimits = index(newConfig);
+        for (Map.Entry<String, ApiLimit> entry : newLimits.entrySet()) {
+            ApiLimit newLimit = entry.getValue();
+            ApiLimit oldLimit = oldLimits.get(entry.getKey());
+            if (oldLimit == null) {
+                diff.added.add(newLimit);
+                diff.resultLimits.add(newLimit);
+            } else if (!oldLimit.equals(newLimit)) {
+                diff.modifiedFrom.add(oldLimit);
+                diff.modifiedTo.add(newLimit);
+                diff.resultLimits.add(newLimit);
+            } else {
+                diff.resultLimits.add(oldLimit);
+            }
+        }
+        for (Map.Entry<String, ApiLimit> entry : oldLimits.entrySet()) {
+            if (!newLimits.containsKey(entry.getKey())) {
+                diff.removed.add(entry.getValue());
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * 把差异应用到规则索引上：先删除，再修改，最后新增
+     * 先删除可以保证api写法不同但归一化后相同的规则（如结尾多一个"/"）被正确替换。
+     * @param rule 待更新的规则索引
+     */
+    public void applyTo(RateLimitRule rule) {
+        for (ApiLimit limit : removed) {
+            rule.removeLimit(limit.getAppId(), limit.getApi());
+        }
+        for (ApiLimit limit : modifiedTo) {
+            rule.addLimit(limit);
+        }
+        for (ApiLimit limit : added) {
+            rule.addLimit(limit);
+        }
+    }
+
+    /**
+     * 应用差异之后生效的规则配置，配置未变化的规则沿用旧配置中的对象
+     * @return 规则配置
+     */
+    public RuleConfig toRuleConfig() {
+        RuleConfig config = new RuleConfig();
+        config.setLimits(new ArrayList<>(resultLimits));
+        return config;
+    }
+
+    public List<ApiLimit> getAdded() {
+        return Collections.unmodifiableList(added);
+    }
+
+    public List<ApiLimit> getRemoved() {
+        return Collections.unmodifiableList(removed);
+    }
+
+    /**
+     * @return 被修改规则的旧配置，与getModifiedTo()按下标一一对应
+     */
+    public List<ApiLimit> getModifiedFrom() {
+        return Collections.unmodifiableList(modifiedFrom);
+    }
+
+    /**
+     * @return 被修改规则的新配置，与getModifiedFrom()按下标一一对应
+     */
+    public List<ApiLimit> getModifiedTo() {
+        return Collections.unmodifiableList(modifiedTo);
+    }
+
+    /**
+     * @return 变更的规则总数
+     */
+    public int size() {
+        return added.size() + removed.size() + modifiedTo.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    private static Map<String, ApiLimit> index(RuleConfig config) {
+        Map<String, ApiLimit> limits = new LinkedHashMap<>();
+        if (config == null || config.getLimits() == null) {
+            return limits;
+        }
+        for (ApiLimit limit : config.getLimits()) {
+            if (limit == null || limit.getAppId() == null || limit.getApi() == null) {
+                continue;
+            }
+            limits.put(limit.getAppId() + '\0' + limit.getApi(), limit);
+        }
+        return limits;
+    }
+
+    @Override
+    public String toString() {
+        return "+" + added.size() + " -" + removed.size() + " ~" + modifiedTo.size();
+    }
+}
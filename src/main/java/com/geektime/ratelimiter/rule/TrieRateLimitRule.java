@@ -1,17 +1,35 @@
 package com.geektime.ratelimiter.rule;
 
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * @Description: 基于Trie树的限流规则实现类
+ * 每个appId维护一棵按"/"切分的路径段Trie树，支持以下匹配模式：
+ * - 普通路径段：/api/v1/user，精确匹配
+ * - 路径变量：{id}，匹配任意一个路径段
+ * - 单段通配符：*，匹配任意一个路径段（与路径变量等价）
+ * - 多段通配符：**，匹配零个或多个路径段
+ *
+ * 匹配优先级：在同一层级上 精确段 > {var}/* > **，先命中的即为最具体的规则，
+ * 例如同时配置了 /api/v1/user/{id} 与 /api/**，则 /api/v1/user/123 命中前者。
+ *
+ * 查询只读不加锁，且不分配任何对象：路径段直接在原始url上按下标比较，
+ * 不做split/substring。不含**的规则查询复杂度为O(路径段数)。
+ * 规则的增删在写锁内完成，子节点表采用写时复制或原子发布，读线程总能看到一致的树。
+ * url中的查询串（?之后的部分）、重复的"/"以及结尾的"/"都会被忽略。
  * @Author: dansheng
  * @CreateTime: 2025/2/6 17:04
  **/
 public class TrieRateLimitRule implements RateLimitRule {
-    // 使用ConcurrentHashMap存储限流规则，key为appId:api的组合
-    private final Map<String, ApiLimit> limitMap = new ConcurrentHashMap<>();
-    
+    private static final char PATH_SEPARATOR = '/';
+    private static final char QUERY_SEPARATOR = '?';
+    private static final String SINGLE_WILDCARD = "*";
+    private static final String MULTI_WILDCARD = "**";
+
+    // 每个appId对应一棵路径Trie树
+    private final ConcurrentHashMap<String, Node> appRoots = new ConcurrentHashMap<>();
+
     /**
      * 构造函数，初始化限流规则
      * @param ruleConfig 规则配置
@@ -20,8 +38,7 @@ public class TrieRateLimitRule implements RateLimitRule {
         // 从配置中加载限流规则
         if (ruleConfig != null && ruleConfig.getLimits() != null) {
             for (ApiLimit limit : ruleConfig.getLimits()) {
-                String key = generateKey(limit.getAppId(), limit.getApi());
-                limitMap.put(key, limit);
+                addLimit(limit);
             }
         }
     }
@@ -31,32 +48,277 @@ public class TrieRateLimitRule implements RateLimitRule {
         if (appId == null || api == null) {
             return null;
         }
-        return limitMap.get(generateKey(appId, api));
+        Node root = appRoots.get(appId);
+        if (root == null) {
+            return null;
+        }
+        int end = api.indexOf(QUERY_SEPARATOR);
+        if (end < 0) {
+            end = api.length();
+        }
+        return match(root, api, skipSeparators(api, 0, end), end);
     }
 
     @Override
-    public void addLimit(ApiLimit limit) {
-        if (limit != null) {
-            String key = generateKey(limit.getAppId(), limit.getApi());
-            limitMap.put(key, limit);
+    public synchronized void addLimit(ApiLimit limit) {
+        if (limit == null || limit.getAppId() == null || limit.getApi() == null) {
+            return;
         }
+        Node node = appRoots.computeIfAbsent(limit.getAppId(), k -> new Node(null));
+        String api = limit.getApi();
+        int end = api.length();
+        int pos = skipSeparators(api, 0, end);
+        while (pos < end) {
+            int segmentEnd = segmentEnd(api, pos, end);
+            node = node.getOrCreateChild(api.substring(pos, segmentEnd));
+            pos = skipSeparators(api, segmentEnd, end);
+        }
+        node.limit = limit;
     }
 
     @Override
-    public void removeLimit(String appId, String api) {
-        if (appId != null && api != null) {
-            String key = generateKey(appId, api);
-            limitMap.remove(key);
+    public synchronized void removeLimit(String appId, String api) {
+        if (appId == null || api == null) {
+            return;
+        }
+        Node root = appRoots.get(appId);
+        if (root == null) {
+            return;
+        }
+        remove(root, api, skipSeparators(api, 0, api.length()), api.length());
+        if (root.isEmpty()) {
+            appRoots.remove(appId, root);
+        }
+    }
+
+    /**
+     * 深度优先匹配，同一层级按 精确段 -> {var}/* -> ** 的顺序尝试，先命中者优先
+     */
+    private static ApiLimit match(Node node, String path, int pos, int end) {
+        if (pos >= end) {
+            ApiLimit limit = node.limit;
+            if (limit != null) {
+                return limit;
+            }
+            // ** 可以匹配零个路径段
+            Node multi = node.multiWildcardChild;
+            return multi == null ? null : multi.limit;
+        }
+
+        int segmentEnd = segmentEnd(path, pos, end);
+        int next = skipSeparators(path, segmentEnd, end);
+
+        Node exact = node.findChild(path, pos, segmentEnd);
+        if (exact != null) {
+            ApiLimit limit = match(exact, path, next, end);
+            if (limit != null) {
+                return limit;
+            }
+        }
+
+        Node single = node.singleWildcardChild;
+        if (single != null) {
+            ApiLimit limit = match(single, path, next, end);
+            if (limit != null) {
+                return limit;
+            }
+        }
+
+        Node multi = node.multiWildcardChild;
+        if (multi != null) {
+            // ** 依次吞掉0..n个路径段，吞得越少越具体
+            int p = pos;
+            while (p < end) {
+                ApiLimit limit = match(multi, path, p, end);
+                if (limit != null) {
+                    return limit;
+                }
+                p = skipSeparators(path, segmentEnd(path, p, end), end);
+            }
+            return multi.limit;
+        }
+        return null;
+    }
+
+    private static void remove(Node node, String api, int pos, int end) {
+        if (pos >= end) {
+            node.limit = null;
+            return;
+        }
+        int segmentEnd = segmentEnd(api, pos, end);
+        String segment = api.substring(pos, segmentEnd);
+        Node child = node.getChild(segment);
+        if (child == null) {
+            return;
+        }
+        remove(child, api, skipSeparators(api, segmentEnd, end), end);
+        if (child.isEmpty()) {
+            node.removeChild(segment, child);
+        }
+    }
+
+    private static int segmentEnd(String path, int pos, int end) {
+        int index = path.indexOf(PATH_SEPARATOR, pos);
+        return (index < 0 || index > end) ? end : index;
+    }
+
+    private static int skipSeparators(String path, int pos, int end) {
+        while (pos < end && path.charAt(pos) == PATH_SEPARATOR) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isSingleWildcard(String segment) {
+        return SINGLE_WILDCARD.equals(segment)
+                || (segment.length() >= 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}');
+    }
+
+    /**
+     * 与String.hashCode()算法一致，但直接作用于url的[start, end)区间，避免截取子串
+     */
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Trie树节点，只在持有TrieRateLimitRule锁时修改
+     */
+    private static final class Node {
+        private static final int INITIAL_CAPACITY = 4;
+
+        // 本节点对应的精确路径段，通配符节点为null
+        private final String segment;
+        private final int segmentHash;
+        private volatile ApiLimit limit;
+        private volatile ChildTable children;
+        private volatile Node singleWildcardChild;
+        private volatile Node multiWildcardChild;
+
+        Node(String segment) {
+            this.segment = segment;
+            this.segmentHash = segment == null ? 0 : hash(segment, 0, segment.length());
+        }
+
+        Node findChild(String path, int start, int end) {
+            ChildTable table = children;
+            if (table == null) {
+                return null;
+            }
+            int length = end - start;
+            int mask = table.mask;
+            int index = hash(path, start, end) & mask;
+            Node child;
+            while ((child = table.slots.get(index)) != null) {
+                if (child.segment.length() == length && child.segment.regionMatches(0, path, start, length)) {
+                    return child;
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        Node getChild(String segment) {
+            if (MULTI_WILDCARD.equals(segment)) {
+                return multiWildcardChild;
+            }
+            if (isSingleWildcard(segment)) {
+                return singleWildcardChild;
+            }
+            return findChild(segment, 0, segment.length());
+        }
+
+        Node getOrCreateChild(String segment) {
+            Node child = getChild(segment);
+            if (child != null) {
+                return child;
+            }
+            if (MULTI_WILDCARD.equals(segment)) {
+                child = new Node(null);
+                multiWildcardChild = child;
+            } else if (isSingleWildcard(segment)) {
+                child = new Node(null);
+                singleWildcardChild = child;
+            } else {
+                child = new Node(segment);
+                insert(child);
+            }
+            return child;
+        }
+
+        void removeChild(String segment, Node child) {
+            if (MULTI_WILDCARD.equals(segment)) {
+                multiWildcardChild = null;
+            } else if (isSingleWildcard(segment)) {
+                singleWildcardChild = null;
+            } else {
+                // 开放寻址表无法安全地原地删除，重建一份不含该节点的表再发布
+                ChildTable table = children;
+                ChildTable rebuilt = new ChildTable(table.slots.length());
+                for (int i = 0; i < table.slots.length(); i++) {
+                    Node node = table.slots.get(i);
+                    if (node != null && node != child) {
+                        rebuilt.put(node);
+                    }
+                }
+                children = rebuilt.size == 0 ? null : rebuilt;
+            }
+        }
+
+        boolean isEmpty() {
+            return limit == null && children == null
+                    && singleWildcardChild == null && multiWildcardChild == null;
+        }
+
+        private void insert(Node child) {
+            ChildTable table = children;
+            if (table == null) {
+                table = new ChildTable(INITIAL_CAPACITY);
+                table.put(child);
+                children = table;
+                return;
+            }
+            // 负载因子不超过0.5，超出则扩容后整体发布新表
+            if ((table.size + 1) * 2 > table.slots.length()) {
+                ChildTable resized = new ChildTable(table.slots.length() * 2);
+                for (int i = 0; i < table.slots.length(); i++) {
+                    Node node = table.slots.get(i);
+                    if (node != null) {
+                        resized.put(node);
+                    }
+                }
+                resized.put(child);
+                children = resized;
+                return;
+            }
+            table.put(child);
         }
     }
 
     /**
-     * 生成限流规则的key
-     * @param appId 应用ID
-     * @param api API路径
-     * @return 组合的key
+     * 精确路径段子节点的开放寻址表，槽位通过原子数组发布，读线程无需加锁
      */
-    private String generateKey(String appId, String api) {
-        return appId + ":" + api;
+    private static final class ChildTable {
+        private final AtomicReferenceArray<Node> slots;
+        private final int mask;
+        private int size;
+
+        ChildTable(int capacity) {
+            this.slots = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        void put(Node node) {
+            int index = node.segmentHash & mask;
+            while (slots.get(index) != null) {
+                index = (index + 1) & mask;
+            }
+            slots.set(index, node);
+            size++;
+        }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,47 @@
+package com.geektime.ratelimiter.rule.datasource;
+
+import com.geektime.ratelimiter.rule.RuleConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * @Description: 规则配置数据源的公共基类，负责维护监听器并在配置变更时逐个通知
+ * 单个监听器抛出的异常只记录日志，不影响其他监听器。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:04
+ **/
+public abstract class AbstractRuleConfigSource implements RuleConfigSource {
+    private static final Logger log = LoggerFactory.getLogger(AbstractRuleConfigSource.class);
+
+    private final List<RuleConfigListener> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void addListener(RuleConfigListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener must not be null");
+        }
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(RuleConfigListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 通知所有监听器配置已变更
+     * @param newRuleConfig 变更后的完整规则配置
+     */
+    protected void notifyListeners(RuleConfig newRuleConfig) {
+        for (RuleConfigListener listener : listeners) {
+            try {
+                listener.onRuleConfigChanged(newRuleConfig);
+            } catch (Exception e) {
+                log.error("Rule config listener failed: {}", listener, e);
+            }
+        }
+    }
+}
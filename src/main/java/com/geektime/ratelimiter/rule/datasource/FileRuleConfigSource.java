@@ -14,10 +14,11 @@ import java.util.Map;
 
 /**
  * @Description: 基于文件的规则配置数据源实现
+ * 文件内容变更后调用reload()重新加载，并通知已注册的监听器。
  * @Author: dansheng
  * @CreateTime: 2025/2/6 17:04
  **/
-public class FileRuleConfigSource implements RuleConfigSource {
+public class FileRuleConfigSource extends AbstractRuleConfigSource {
     private static final Logger log = LoggerFactory.getLogger(FileRuleConfigSource.class);
     
     private static final String YAML_EXTENSION = "yaml";
@@ -69,6 +70,20 @@ public class FileRuleConfigSource implements RuleConfigSource {
         }
     }
 
+    /**
+     * 重新加载配置文件并通知监听器，加载失败或文件为空时保留原有规则
+     * @return 重新加载后的规则配置，文件为空时返回null
+     */
+    public RuleConfig reload() {
+        RuleConfig config = load();
+        if (config == null) {
+            log.warn("Config file is empty, keeping current rules: {}", configFile);
+            return null;
+        }
+        notifyListeners(config);
+        return config;
+    }
+
     private String getFileExtension(String filePath) {
         if (filePath == null || filePath.isEmpty()) {
             log.warn("File path is null or empty");
@@ -16,10 +16,11 @@ import java.util.concurrent.Executor;
 
 /**
  * @Description: 基于Nacos配置中心的规则配置数据源实现
+ * 收到Nacos推送的配置后解析并通知已注册的监听器，解析失败时保留原有规则。
  * @Author: dansheng
  * @CreateTime: 2025/2/6 17:04
  **/
-public class NacosRuleConfigSource implements RuleConfigSource {
+public class NacosRuleConfigSource extends AbstractRuleConfigSource {
     private static final Logger log = LoggerFactory.getLogger(NacosRuleConfigSource.class);
     private static final String DEFAULT_GROUP = "DEFAULT_GROUP";
     private static final long DEFAULT_TIMEOUT_MS = 5000;
@@ -28,7 +29,7 @@ public class NacosRuleConfigSource implements RuleConfigSource {
     private final String dataId;
     private final String group;
     private final RuleConfigParser parser;
-    private RuleConfig ruleConfig;
+    private volatile RuleConfig ruleConfig;
 
     public NacosRuleConfigSource(String serverAddr, String dataId, String fileExtension) throws NacosException {
         this(serverAddr, dataId, DEFAULT_GROUP, fileExtension);
@@ -73,6 +74,7 @@ public class NacosRuleConfigSource implements RuleConfigSource {
                         if (newRuleConfig != null) {
                             ruleConfig = newRuleConfig;
                             log.info("Config updated for dataId: {}, group: {}", dataId, group);
+                            notifyListeners(newRuleConfig);
                         }
                     } catch (Exception e) {
                         log.error("Failed to parse updated config, dataId: {}, group: {}", dataId, group, e);
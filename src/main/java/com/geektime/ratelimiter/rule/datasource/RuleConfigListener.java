@@ -0,0 +1,17 @@
+package com.geektime.ratelimiter.rule.datasource;
+
+import com.geektime.ratelimiter.rule.RuleConfig;
+
+/**
+ * @Description: 规则配置变更监听器，配置源拿到新配置后回调
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:04
+ **/
+@FunctionalInterface
+public interface RuleConfigListener {
+    /**
+     * 规则配置发生变更
+     * @param newRuleConfig 变更后的完整规则配置
+     */
+    void onRuleConfigChanged(RuleConfig newRuleConfig);
+}
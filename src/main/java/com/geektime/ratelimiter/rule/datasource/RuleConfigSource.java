@@ -4,6 +4,8 @@ import com.geektime.ratelimiter.rule.RuleConfig;
 
 /**
  * @Description: 规则配置数据源接口
+ * 支持动态更新的数据源在配置变更时回调已注册的RuleConfigListener；
+ * 不支持动态更新的数据源可以只实现load()。
  * @Author: dansheng
  * @CreateTime: 2025/2/6 17:04
  **/
@@ -13,4 +15,18 @@ public interface RuleConfigSource {
      * @return 规则配置对象
      */
     RuleConfig load();
-} 
\ No newline at end of file
+
+    /**
+     * 注册配置变更监听器，默认不支持动态更新，忽略监听器
+     * @param listener 配置变更监听器
+     */
+    default void addListener(RuleConfigListener listener) {
+    }
+
+    /**
+     * 移除配置变更监听器
+     * @param listener 配置变更监听器
+     */
+    default void removeListener(RuleConfigListener listener) {
+    }
+}
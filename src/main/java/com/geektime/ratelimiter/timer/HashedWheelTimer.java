@@ -0,0 +1,408 @@
+package com.geektime.ratelimiter.timer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @Description: 哈希时间轮定时器
+ * 时间轮由ticksPerWheel个槽位组成，每个槽位是一个双向链表，工作线程每隔tickDuration前进一格，
+ * 执行当前槽位中到期的任务；延迟超过一圈的任务记录剩余圈数，每转过一圈减一。
+ * 提交与取消只是把任务放入无锁队列，由工作线程在下一格挂入或摘出链表，因此均为O(1)，
+ * 与ScheduledThreadPoolExecutor的堆相比，大量待执行任务时不会因为O(log n)的堆调整而变慢。
+ * 代价是精度：任务最多晚一个tickDuration执行，适合限流排队、过期清理这类对精度不敏感的场景。
+ *
+ * 所有任务都在唯一的工作线程上执行，任务应尽快返回，耗时操作（如访问Redis）应转交给其他线程池。
+ * 工作线程在首次提交任务时启动，没有待执行任务时挂起，不会空转。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:07
+ **/
+public class HashedWheelTimer implements Timer {
+    private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+    public static final long DEFAULT_TICK_DURATION_MS = 1;
+    public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+    // 每一格最多从队列中挂入的新任务数，避免提交过快时工作线程迟迟不能执行到期任务
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private static final int WORKER_INIT = 0;
+    private static final int WORKER_STARTED = 1;
+    private static final int WORKER_SHUTDOWN = 2;
+
+    private final Thread workerThread;
+    private final AtomicInteger workerState = new AtomicInteger(WORKER_INIT);
+    private final long tickDurationNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<WheelTimeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<WheelTimeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingTimeouts = new AtomicLong();
+    // 工作线程的起始时刻，所有截止时间都相对它计算
+    private volatile long startTime;
+    // 工作线程因没有待执行任务而挂起时为true，提交任务时据此决定是否唤醒
+    private volatile boolean idle;
+
+    public HashedWheelTimer() {
+        this(DEFAULT_TICK_DURATION_MS, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    /**
+     * @param tickDuration 每一格的时长，决定定时精度
+     * @param unit 时间单位
+     * @param ticksPerWheel 一圈的格数，向上取整为2的幂
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this(new ThreadFactoryBuilder().setNameFormat("ratelimiter-timer-%d").setDaemon(true).build(),
+                tickDuration, unit, ticksPerWheel);
+    }
+
+    public HashedWheelTimer(ThreadFactory threadFactory, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive");
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("Ticks per wheel must be in [1, 2^30]");
+        }
+        int wheelSize = ticksPerWheel == 1 ? 1 : Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        this.wheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheelSize - 1;
+        this.tickDurationNanos = unit.toNanos(tickDuration);
+        if (tickDurationNanos >= Long.MAX_VALUE / wheelSize) {
+            throw new IllegalArgumentException("Tick duration is too long: " + tickDuration + " " + unit);
+        }
+        this.workerThread = threadFactory.newThread(new Worker());
+    }
+
+    /**
+     * 进程内共享的默认时间轮（1ms一格，512格），首次使用时创建，工作线程为守护线程
+     */
+    public static HashedWheelTimer getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    @Override
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw new IllegalArgumentException("Task must not be null");
+        }
+        start();
+        long deadline = System.nanoTime() + Math.max(0, unit.toNanos(delay)) - startTime;
+        // 防止溢出
+        if (delay > 0 && deadline < 0) {
+            deadline = Long.MAX_VALUE;
+        }
+        WheelTimeout timeout = new WheelTimeout(this, task, deadline);
+        pendingTimeouts.incrementAndGet();
+        newTimeouts.add(timeout);
+        if (idle) {
+            LockSupport.unpark(workerThread);
+        }
+        return timeout;
+    }
+
+    @Override
+    public int stop() {
+        if (Thread.currentThread() == workerThread) {
+            throw new IllegalStateException("HashedWheelTimer.stop() cannot be called from a timer task");
+        }
+        if (workerState.getAndSet(WORKER_SHUTDOWN) != WORKER_STARTED) {
+            return 0;
+        }
+        LockSupport.unpark(workerThread);
+        boolean interrupted = false;
+        while (workerThread.isAlive()) {
+            LockSupport.unpark(workerThread);
+            try {
+                workerThread.join(100);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        int unprocessed = 0;
+        for (Bucket bucket : wheel) {
+            unprocessed += bucket.clear();
+        }
+        WheelTimeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (!timeout.isCancelled()) {
+                unprocessed++;
+            }
+        }
+        cancelledTimeouts.clear();
+        pendingTimeouts.set(0);
+        return unprocessed;
+    }
+
+    /**
+     * @return 尚未执行的任务数，包含已取消但尚未从时间轮中摘除的任务
+     */
+    public long pendingTimeouts() {
+        return pendingTimeouts.get();
+    }
+
+    private void start() {
+        switch (workerState.get()) {
+            case WORKER_INIT:
+                if (workerState.compareAndSet(WORKER_INIT, WORKER_STARTED)) {
+                    startTime = System.nanoTime();
+                    workerThread.start();
+                }
+                break;
+            case WORKER_STARTED:
+                break;
+            default:
+                throw new IllegalStateException("Cannot enqueue after the timer is stopped");
+        }
+        // 工作线程启动前startTime可能还未被设置
+        while (startTime == 0) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private long tick;
+
+        @Override
+        public void run() {
+            while (workerState.get() == WORKER_STARTED) {
+                if (pendingTimeouts.get() == 0) {
+                    awaitTimeouts();
+                    continue;
+                }
+                long deadline = waitForNextTick();
+                if (deadline < 0) {
+                    continue;
+                }
+                processCancelledTimeouts();
+                transferTimeoutsToBuckets();
+                wheel[(int) (tick & mask)].expireTimeouts(deadline);
+                tick++;
+            }
+        }
+
+        /**
+         * 没有待执行任务时挂起，被唤醒后把tick追到当前时刻，跳过期间的空槽位
+         */
+        private void awaitTimeouts() {
+            idle = true;
+            try {
+                if (pendingTimeouts.get() == 0 && workerState.get() == WORKER_STARTED) {
+                    LockSupport.park(this);
+                }
+            } finally {
+                idle = false;
+            }
+            tick = Math.max(tick, (System.nanoTime() - startTime) / tickDurationNanos);
+        }
+
+        /**
+         * 等待到下一格的起始时刻
+         * @return 当前时刻（相对startTime），被stop唤醒时返回-1
+         */
+        private long waitForNextTick() {
+            long deadline = tickDurationNanos * (tick + 1);
+            while (true) {
+                long currentTime = System.nanoTime() - startTime;
+                long sleepNanos = deadline - currentTime;
+                if (sleepNanos <= 0) {
+                    return currentTime;
+                }
+                if (workerState.get() != WORKER_STARTED) {
+                    return -1;
+                }
+                LockSupport.parkNanos(this, sleepNanos);
+            }
+        }
+
+        private void processCancelledTimeouts() {
+            WheelTimeout timeout;
+            while ((timeout = cancelledTimeouts.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                    pendingTimeouts.decrementAndGet();
+                }
+            }
+        }
+
+        private void transferTimeoutsToBuckets() {
+            for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+                WheelTimeout timeout = newTimeouts.poll();
+                if (timeout == null) {
+                    break;
+                }
+                if (timeout.isCancelled()) {
+                    // 尚未挂入链表就被取消，不会出现在cancelledTimeouts的处理中
+                    pendingTimeouts.decrementAndGet();
+                    continue;
+                }
+                long calculated = timeout.deadline / tickDurationNanos;
+                timeout.remainingRounds = (calculated - tick) / wheel.length;
+                // 已经过期的任务放到当前格，本格就执行
+                long ticks = Math.max(calculated, tick);
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+        }
+    }
+
+    private static final class WheelTimeout implements Timeout {
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<WheelTimeout> STATE_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(WheelTimeout.class, "state");
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = ST_INIT;
+
+        // 以下字段只由工作线程读写
+        long remainingRounds;
+        WheelTimeout next;
+        WheelTimeout prev;
+        Bucket bucket;
+
+        WheelTimeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            // 只入队，由工作线程在下一格从链表中摘除
+            timer.cancelledTimeouts.add(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.warn("An exception was thrown by timer task: {}", task, t);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "WheelTimeout{deadline=" + deadline + ", state=" + state + ", task=" + task + "}";
+        }
+    }
+
+    /**
+     * 时间轮的一个槽位，只由工作线程访问
+     */
+    private final class Bucket {
+        private WheelTimeout head;
+        private WheelTimeout tail;
+
+        void add(WheelTimeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * 执行本槽位中剩余圈数为0的任务，其余任务圈数减一
+         */
+        void expireTimeouts(long deadline) {
+            WheelTimeout timeout = head;
+            while (timeout != null) {
+                WheelTimeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    pendingTimeouts.decrementAndGet();
+                    if (timeout.deadline <= deadline) {
+                        timeout.expire();
+                    } else {
+                        // 不应出现：任务被放进了错误的槽位
+                        throw new IllegalStateException(String.format(
+                                "timeout.deadline (%d) > deadline (%d)", timeout.deadline, deadline));
+                    }
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                    pendingTimeouts.decrementAndGet();
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(WheelTimeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            WheelTimeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        /**
+         * @return 清空前未取消且未执行的任务数
+         */
+        int clear() {
+            int unprocessed = 0;
+            WheelTimeout timeout;
+            while ((timeout = head) != null) {
+                remove(timeout);
+                if (!timeout.isCancelled() && !timeout.isExpired()) {
+                    unprocessed++;
+                }
+            }
+            return unprocessed;
+        }
+    }
+
+    private static final class DefaultHolder {
+        static final HashedWheelTimer INSTANCE = new HashedWheelTimer();
+    }
+}
@@ -0,0 +1,21 @@
+package com.geektime.ratelimiter.timer;
+
+/**
+ * @Description: Timer返回的延迟任务句柄
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:07
+ **/
+public interface Timeout {
+    /**
+     * 取消任务，任务已执行或已取消时无效
+     * @return 是否取消成功
+     */
+    boolean cancel();
+
+    boolean isCancelled();
+
+    /**
+     * @return 任务是否已到期执行
+     */
+    boolean isExpired();
+}
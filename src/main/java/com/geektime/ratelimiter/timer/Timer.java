@@ -0,0 +1,27 @@
+package com.geektime.ratelimiter.timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description: 定时器，在指定延迟后执行一次任务
+ * 用于排队等待许可等大量短延迟任务，不为每个任务占用一个线程。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:07
+ **/
+public interface Timer {
+    /**
+     * 提交一个延迟任务
+     * @param task 到期后执行的任务，应尽快返回，耗时操作应转交给其他线程池
+     * @param delay 延迟时间
+     * @param unit 时间单位
+     * @return 可用于取消任务的句柄
+     * @throws IllegalStateException 定时器已停止时抛出
+     */
+    Timeout newTimeout(Runnable task, long delay, TimeUnit unit);
+
+    /**
+     * 停止定时器，尚未到期的任务不再执行
+     * @return 尚未到期且未取消的任务数
+     */
+    int stop();
+}
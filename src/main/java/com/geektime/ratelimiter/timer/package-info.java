@@ -0,0 +1,9 @@
+/**
+ * 定时器相关类
+ *
+ * 包含以下主要类：
+ * - Timer: 延迟任务定时器接口
+ * - Timeout: 延迟任务句柄
+ * - HashedWheelTimer: 基于哈希时间轮的定时器实现，插入与取消均为O(1)
+ */
+package com.geektime.ratelimiter.timer;
@@ -0,0 +1,150 @@
+package com.geektime.redis;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.ConnectionPool;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisClusterInfoCache;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisClusterOperationException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Description: 按节点分组执行批量命令所需的公共工具
+ * slot到主节点的映射通过CLUSTER SLOTS加载，节点的key与JedisCluster.getClusterNodes()一致；
+ * 遇到重定向或未知节点时调用invalidateSlotOwners()，下次使用时重新加载。
+ * 每个JedisCluster共用一份映射，映射不持有JedisCluster，随JedisCluster一起被回收。
+ * 各节点的pipeline通过runInParallel()并行执行，调用线程自己执行其中一个。
+ * @Author: dansheng
+ * @CreateTime: 2025/2/6 17:06
+ **/
+public final class RedisClusterSupport {
+    private static final Map<JedisCluster, SlotOwners> SLOT_OWNERS =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private RedisClusterSupport() {
+    }
+
+    /**
+     * @return 每个slot所属主节点的key，未加载或已失效时从集群加载
+     */
+    public static String[] slotOwners(JedisCluster cluster) {
+        SlotOwners slotOwners = SLOT_OWNERS.computeIfAbsent(cluster, k -> new SlotOwners());
+        String[] owners = slotOwners.owners;
+        if (owners == null) {
+            owners = load(cluster);
+            slotOwners.owners = owners;
+        }
+        return owners;
+    }
+
+    /**
+     * 使集群的slot映射失效，下次使用时重新加载
+     */
+    public static void invalidateSlotOwners(JedisCluster cluster) {
+        SlotOwners slotOwners = SLOT_OWNERS.get(cluster);
+        if (slotOwners != null) {
+            slotOwners.owners = null;
+        }
+    }
+
+    /**
+     * 除最后一个任务在调用线程上执行外，其余任务提交到线程池，全部完成后返回；
+     * 有任务失败时等其余任务结束后抛出第一个异常
+     * @param executor 执行其余任务的线程池，应为newPipelineExecutor()创建的有界线程池
+     * @param tasks 每个节点一个任务
+     */
+    public static void runInParallel(ExecutorService executor, List<Runnable> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>(tasks.size() - 1);
+        for (int i = 0; i < tasks.size() - 1; i++) {
+            futures.add(executor.submit(tasks.get(i)));
+        }
+        RuntimeException failure = null;
+        try {
+            tasks.get(tasks.size() - 1).run();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    Throwable cause = e.getCause();
+                    failure = cause instanceof RuntimeException
+                            ? (RuntimeException) cause : new JedisException("Failed to execute redis pipeline", cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JedisException("Interrupted while waiting for redis pipelines", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * 创建执行pipeline的线程池，线程数与队列均有上限，空闲线程会退出，队列满时由提交线程自己执行
+     * @param nameFormat 线程名格式，如 "redis-pipeline-%d"
+     * @param threads 线程数
+     * @param queuePerThread 每个线程可排队的任务数
+     */
+    public static ExecutorService newPipelineExecutor(String nameFormat, int threads, int queuePerThread) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(threads * queuePerThread),
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String[] load(JedisCluster cluster) {
+        JedisException lastException = null;
+        for (ConnectionPool pool : cluster.getClusterNodes().values()) {
+            try (Connection connection = pool.getResource()) {
+                String[] owners = new String[Protocol.CLUSTER_HASHSLOTS];
+                for (Object slotInfo : new Jedis(connection).clusterSlots()) {
+                    // 每项为 [起始slot, 结束slot, [主节点host, 主节点port, ...], 从节点...]
+                    List<Object> info = (List<Object>) slotInfo;
+                    List<Object> master = (List<Object>) info.get(2);
+                    HostAndPort node = new HostAndPort(SafeEncoder.encode((byte[]) master.get(0)),
+                            ((Long) master.get(1)).intValue());
+                    Arrays.fill(owners, ((Long) info.get(0)).intValue(), ((Long) info.get(1)).intValue() + 1,
+                            JedisClusterInfoCache.getNodeKey(node));
+                }
+                return owners;
+            } catch (JedisException e) {
+                lastException = e;
+            }
+        }
+        throw new JedisClusterOperationException("Failed to load cluster slots from any node", lastException);
+    }
+
+    /**
+     * 一个集群的slot映射，尚未加载或失效后为null
+     */
+    private static final class SlotOwners {
+        volatile String[] owners;
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * 限流与幂等框架共用的Redis工具
+ */
+package com.geektime.redis;